@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.benchmarks;
+
+import org.folg.places.standardize.Standardizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the word and place indexes: parsing the csv files, reading a snapshot onto the heap, or mapping a snapshot
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class IndexLoadBenchmark {
+   @Param({"csv", "snapshot", "mapped"})
+   public String source;
+
+   @Benchmark
+   public Standardizer load(StandardizerState state) throws IOException {
+      Standardizer standardizer = state.standardizer;
+      if ("csv".equals(source)) {
+         standardizer.readWordIndex(new StringReader(state.places.getPlaceWordsCsv()));
+         standardizer.readPlaceIndex(new StringReader(state.places.getPlacesCsv()));
+      }
+      else {
+         standardizer.readSnapshot(state.snapshot, "mapped".equals(source));
+      }
+      return standardizer;
+   }
+}
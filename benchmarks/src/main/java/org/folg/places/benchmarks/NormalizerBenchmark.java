@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.benchmarks;
+
+import org.folg.places.standardize.Normalizer;
+import org.folg.places.standardize.TokenBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing place texts and normalizing place names
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class NormalizerBenchmark {
+   @Param({"full", "commaless", "noise", "types", "abbreviations"})
+   public String mix;
+
+   private Normalizer normalizer;
+   private TokenBuffer tokens = new TokenBuffer();
+   private String[] texts;
+   private String[] names;
+   private int next = 0;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      normalizer = Normalizer.getInstance();
+      SyntheticPlaces places = SyntheticPlaces.getInstance();
+      texts = places.getTexts(mix, 4096);
+      names = new String[texts.length];
+      for (int i = 0; i < texts.length; i++) {
+         names[i] = texts[i].substring(0, texts[i].indexOf(',') > 0 ? texts[i].indexOf(',') : texts[i].length());
+      }
+   }
+
+   @Benchmark
+   public List<List<String>> tokenize() {
+      next = (next + 1) & (texts.length - 1);
+      return normalizer.tokenize(texts[next]);
+   }
+
+   @Benchmark
+   public TokenBuffer tokenizeIntoBuffer() {
+      next = (next + 1) & (texts.length - 1);
+      normalizer.tokenize(texts[next], tokens);
+      return tokens;
+   }
+
+   @Benchmark
+   public String normalize() {
+      next = (next + 1) & (names.length - 1);
+      return normalizer.normalize(names[next]);
+   }
+}
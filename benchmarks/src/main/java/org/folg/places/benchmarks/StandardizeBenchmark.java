@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.benchmarks;
+
+import org.folg.places.standardize.Standardizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standardizing place texts in each mode, for each mix of place texts.
+ * The result cache is off, so every call runs the matching algorithm.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class StandardizeBenchmark {
+   @Param({"BEST", "REQUIRED", "NEW"})
+   public Standardizer.Mode mode;
+
+   @Param({"full", "commaless", "ambiguous", "noise", "types", "abbreviations", "mixed"})
+   public String mix;
+
+   private String[] texts;
+   private int next = 0;
+
+   @Setup(Level.Trial)
+   public void setUp(StandardizerState state) {
+      texts = state.places.getTexts(mix, 4096);
+   }
+
+   @Benchmark
+   public List<Standardizer.PlaceScore> standardize(StandardizerState state) {
+      next = (next + 1) & (texts.length - 1);
+      return state.standardizer.standardize(texts[next], null, mode, 1, null);
+   }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.benchmarks;
+
+import org.folg.places.standardize.Snapshot;
+import org.folg.places.standardize.Standardizer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A Standardizer loaded with the synthetic places, shared by all benchmark threads
+ */
+@State(Scope.Benchmark)
+public class StandardizerState {
+   Standardizer standardizer;
+   SyntheticPlaces places;
+   File snapshot;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      places = SyntheticPlaces.getInstance();
+      snapshot = places.writeSnapshot();
+      // the standardizer loads whatever snapshot the property names when it's created; load the synthetic places
+      // onto the heap, which is how the standardizer normally runs
+      System.setProperty(Snapshot.FILE_PROPERTY, snapshot.getPath());
+      standardizer = Standardizer.getInstance();
+      standardizer.readSnapshot(snapshot, false);
+      standardizer.setResultCacheSize(0);
+   }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.benchmarks;
+
+import org.folg.places.standardize.Normalizer;
+import org.folg.places.standardize.Snapshot;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A fixed, generated place hierarchy and place texts to standardize against it,
+ * so benchmark numbers don't depend on which places data is installed.
+ * Countries contain states, states contain counties, counties contain towns.
+ * Town names are drawn from a small pool, so most town names are ambiguous.
+ */
+public class SyntheticPlaces {
+   public static final String[] MIXES = {"full", "commaless", "ambiguous", "noise", "types", "abbreviations", "mixed"};
+
+   private static final int COUNTRIES = 10;
+   private static final int STATES_PER_COUNTRY = 30;
+   private static final int COUNTIES_PER_STATE = 20;
+   private static final int TOWNS_PER_COUNTY = 20;
+   private static final int TOWN_NAMES = 4000;
+   private static final String[] SYLLABLES = {
+      "ash", "ber", "brook", "burg", "cas", "dale", "dor", "field", "ford", "ham", "hill", "ka", "ley", "lin",
+      "lo", "mar", "mont", "port", "ro", "san", "stad", "ton", "ven", "ville", "wick", "wood"
+   };
+   // town name prefixes that are written abbreviated in the abbreviations mix
+   private static final String[][] PREFIXES = {{"Saint", "St"}, {"Mount", "Mt"}, {"North", "No"}, {"Fort", "Ft"}};
+   private static final String[] TOWN_TYPES = {"Town", "Village", "City", "Parish"};
+
+   private static SyntheticPlaces instance = null;
+
+   // place id i is at index i-1
+   private final List<String> names = new ArrayList<String>();
+   private final List<String> types = new ArrayList<String>();
+   private final List<Integer> locatedInIds = new ArrayList<Integer>();
+   private final List<Integer> levels = new ArrayList<Integer>();
+   private final List<Integer> countries = new ArrayList<Integer>();
+   private final List<Integer> towns = new ArrayList<Integer>();
+   private final String placesCsv;
+   private final String placeWordsCsv;
+
+   /**
+    * The hierarchy is the same every time, so it's generated only once per JVM
+    */
+   public static synchronized SyntheticPlaces getInstance() {
+      if (instance == null) {
+         instance = new SyntheticPlaces();
+      }
+      return instance;
+   }
+
+   private SyntheticPlaces() {
+      Random random = new Random(42);
+      String[] townNames = new String[TOWN_NAMES];
+      for (int i = 0; i < townNames.length; i++) {
+         townNames[i] = generateName(random);
+         if (i % 10 == 0) {
+            townNames[i] = PREFIXES[(i / 10) % PREFIXES.length][0] + " " + townNames[i];
+         }
+      }
+
+      for (int c = 0; c < COUNTRIES; c++) {
+         int countryId = add(generateName(random), "Country", 0, 1, 0);
+         for (int s = 0; s < STATES_PER_COUNTRY; s++) {
+            int stateId = add(generateName(random), "State", countryId, 2, countryId);
+            for (int k = 0; k < COUNTIES_PER_STATE; k++) {
+               int countyId = add(generateName(random), "County", stateId, 3, countryId);
+               for (int t = 0; t < TOWNS_PER_COUNTY; t++) {
+                  String type = TOWN_TYPES[random.nextInt(TOWN_TYPES.length)];
+                  towns.add(add(townNames[random.nextInt(townNames.length)], type, countyId, 4, countryId));
+               }
+            }
+         }
+      }
+
+      StringBuilder buf = new StringBuilder();
+      Map<String,List<Integer>> words = new TreeMap<String,List<Integer>>();
+      Normalizer normalizer = Normalizer.getInstance();
+      for (int id = 1; id <= names.size(); id++) {
+         buf.append(id).append('|').append(getName(id)).append("||").append(types.get(id-1)).append('|')
+            .append(locatedInIds.get(id-1)).append("||").append(levels.get(id-1)).append('|').append(countries.get(id-1))
+            .append("||\n");
+         String word = normalizer.normalize(getName(id));
+         List<Integer> ids = words.get(word);
+         if (ids == null) {
+            ids = new ArrayList<Integer>();
+            words.put(word, ids);
+         }
+         ids.add(id);
+      }
+      placesCsv = buf.toString();
+
+      buf.setLength(0);
+      for (Map.Entry<String,List<Integer>> entry : words.entrySet()) {
+         buf.append(entry.getKey()).append('|');
+         for (int i = 0; i < entry.getValue().size(); i++) {
+            if (i > 0) {
+               buf.append(',');
+            }
+            buf.append(entry.getValue().get(i));
+         }
+         buf.append('\n');
+      }
+      placeWordsCsv = buf.toString();
+   }
+
+   private static String generateName(Random random) {
+      StringBuilder buf = new StringBuilder();
+      int len = 2 + random.nextInt(2);
+      for (int i = 0; i < len; i++) {
+         buf.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+      }
+      return Character.toUpperCase(buf.charAt(0)) + buf.substring(1);
+   }
+
+   private int add(String name, String type, int locatedInId, int level, int country) {
+      names.add(name);
+      types.add(type);
+      locatedInIds.add(locatedInId);
+      levels.add(level);
+      int id = names.size();
+      countries.add(country == 0 ? id : country);
+      return id;
+   }
+
+   private String getName(int id) {
+      return names.get(id-1);
+   }
+
+   private int getLocatedInId(int id) {
+      return locatedInIds.get(id-1);
+   }
+
+   public int size() {
+      return names.size();
+   }
+
+   /**
+    * @return the hierarchy in places.csv format
+    */
+   public String getPlacesCsv() {
+      return placesCsv;
+   }
+
+   /**
+    * @return the word index in place_words.csv format
+    */
+   public String getPlaceWordsCsv() {
+      return placeWordsCsv;
+   }
+
+   /**
+    * Compile the hierarchy into a snapshot in a temporary file, with the standardizer.properties on the classpath
+    */
+   public File writeSnapshot() throws IOException {
+      File file = File.createTempFile("places", ".snapshot");
+      file.deleteOnExit();
+      Reader propertiesReader =
+              new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8");
+      OutputStream out = new FileOutputStream(file);
+      try {
+         Snapshot.write(propertiesReader, new StringReader(placeWordsCsv), new StringReader(placesCsv), out);
+      }
+      finally {
+         propertiesReader.close();
+         out.close();
+      }
+      return file;
+   }
+
+   /**
+    * @return random place ids
+    */
+   public int[] getIds(int count) {
+      Random random = new Random(7);
+      int[] ids = new int[count];
+      for (int i = 0; i < count; i++) {
+         ids[i] = 1 + random.nextInt(names.size());
+      }
+      return ids;
+   }
+
+   /**
+    * Place texts for towns in the hierarchy, written the way one of the MIXES writes them:
+    * full - town, county, state, country;
+    * commaless - the same without commas;
+    * ambiguous - just the town, or the town and country;
+    * noise - with noise words like "buried in" or "probably near";
+    * types - with type words like "township" and "county";
+    * abbreviations - with abbreviations like "St" and "Co";
+    * mixed - a mix of all of the above.
+    * There is also misspelled - full texts with a letter of the town name changed; it isn't one of the MIXES.
+    */
+   public String[] getTexts(String mix, int count) {
+      Random random = new Random(mix.hashCode());
+      String[] texts = new String[count];
+      for (int i = 0; i < count; i++) {
+         String m = "mixed".equals(mix) ? MIXES[i % (MIXES.length - 1)] : mix;
+         texts[i] = getText(m, towns.get(random.nextInt(towns.size())), random);
+      }
+      return texts;
+   }
+
+   private String getText(String mix, int townId, Random random) {
+      int countyId = getLocatedInId(townId);
+      int stateId = getLocatedInId(countyId);
+      int countryId = getLocatedInId(stateId);
+      String town = getName(townId);
+      String county = getName(countyId);
+      String state = getName(stateId);
+      String country = getName(countryId);
+
+      if ("full".equals(mix)) {
+         return town+", "+county+", "+state+", "+country;
+      }
+      else if ("commaless".equals(mix)) {
+         return town+" "+county+" "+state+" "+country;
+      }
+      else if ("ambiguous".equals(mix)) {
+         return random.nextBoolean() ? town : town+", "+country;
+      }
+      else if ("noise".equals(mix)) {
+         return (random.nextBoolean() ? "buried in " : "probably near ")+town+", "+county+", "+state;
+      }
+      else if ("types".equals(mix)) {
+         return town+" "+types.get(townId-1).toLowerCase()+", "+county+" County, "+state+" State, "+country;
+      }
+      else if ("abbreviations".equals(mix)) {
+         for (String[] prefix : PREFIXES) {
+            if (town.startsWith(prefix[0]+" ")) {
+               town = prefix[1]+town.substring(prefix[0].length());
+               break;
+            }
+         }
+         return town+", "+county+" Co, "+state+", "+country;
+      }
+      else if ("misspelled".equals(mix)) {
+         // change a letter other than the first or last
+         char[] chars = town.toCharArray();
+         int i = 1 + random.nextInt(chars.length - 2);
+         while (chars[i] == ' ') {
+            i = 1 + random.nextInt(chars.length - 2);
+         }
+         chars[i] = chars[i] == 'x' ? 'q' : 'x';
+         return new String(chars)+", "+county+", "+state+", "+country;
+      }
+      throw new IllegalArgumentException("Unknown mix: "+mix);
+   }
+}
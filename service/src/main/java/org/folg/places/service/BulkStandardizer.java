@@ -0,0 +1,338 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.service;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.folg.places.standardize.Place;
+import org.folg.places.standardize.Standardizer;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streams back the results of standardizing a body of newline-delimited place texts.
+ * Lines are standardized in chunks on a shared pool and written out in input order as the chunks finish;
+ * only a bounded number of chunks are in flight, so memory use doesn't depend on the size of the body.
+ */
+class BulkStandardizer implements StreamingOutput {
+   static final String NDJSON = "application/x-ndjson";
+   static final String CSV = "text/csv";
+   // number of threads standardizing chunks, shared by all requests
+   static final String THREADS_PROPERTY = "places.bulk.threads";
+
+   private static final int CHUNK_SIZE = 500;
+   private static final JsonFactory jsonFactory = new JsonFactory();
+   private static final int numThreads =
+           Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+   private static final ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "bulk-standardizer");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   private final InputStream in;
+   private final boolean ndjsonIn;
+   private final boolean csvOut;
+   private final Options defaults;
+
+   /**
+    * @param ndjsonIn if true, each line is a JSON object with text and optionally mode, defaultCountry and numResults,
+    * which override the defaults; otherwise each line is a place text
+    * @param csvOut if true, write a csv row per result; otherwise write a JSON object per line
+    */
+   BulkStandardizer(InputStream in, boolean ndjsonIn, boolean csvOut, Standardizer.Mode mode, String defaultCountry,
+                    int numResults) {
+      this.in = in;
+      this.ndjsonIn = ndjsonIn;
+      this.csvOut = csvOut;
+      this.defaults = new Options(mode, defaultCountry, numResults);
+   }
+
+   @Override
+   public void write(OutputStream out) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      if (csvOut) {
+         writer.write("text,id,name,fullName,score,error\n");
+      }
+      // reorder buffer: chunks in input order; bounded so the reader can't get too far ahead of the writer
+      LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+      int maxPending = numThreads * 4;
+      try {
+         List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+         String nextLine;
+         while ((nextLine = reader.readLine()) != null) {
+            lines.add(nextLine);
+            if (lines.size() == CHUNK_SIZE) {
+               pending.addLast(executor.submit(new Chunk(lines)));
+               lines = new ArrayList<String>(CHUNK_SIZE);
+               while (pending.size() > maxPending || (pending.size() > 0 && pending.getFirst().isDone())) {
+                  write(writer, pending.removeFirst());
+               }
+               // send what's done before waiting for more input
+               writer.flush();
+            }
+         }
+         if (lines.size() > 0) {
+            pending.addLast(executor.submit(new Chunk(lines)));
+         }
+         while (pending.size() > 0) {
+            write(writer, pending.removeFirst());
+         }
+         writer.flush();
+      }
+      finally {
+         // the client went away or a chunk failed; don't standardize the rest
+         for (Future<Chunk> chunk : pending) {
+            chunk.cancel(true);
+         }
+      }
+   }
+
+   private static void write(Writer writer, Future<Chunk> chunk) throws IOException {
+      try {
+         writer.write(chunk.get().output.toString());
+      } catch (InterruptedException e) {
+         throw new InterruptedIOException("Interrupted while standardizing");
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Error standardizing: "+e.getCause().getMessage(), e.getCause());
+      }
+   }
+
+   /**
+    * How to standardize a line; lines with the same options in a chunk are standardized as a batch
+    */
+   private static class Options {
+      private final Standardizer.Mode mode;
+      private final String defaultCountry;
+      private final int numResults;
+
+      Options(Standardizer.Mode mode, String defaultCountry, int numResults) {
+         this.mode = mode;
+         this.defaultCountry = defaultCountry;
+         this.numResults = numResults;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Options)) {
+            return false;
+         }
+         Options that = (Options)o;
+         return mode == that.mode && numResults == that.numResults &&
+                 (defaultCountry == null ? that.defaultCountry == null : defaultCountry.equals(that.defaultCountry));
+      }
+
+      @Override
+      public int hashCode() {
+         return (mode.hashCode() * 31 + (defaultCountry != null ? defaultCountry.hashCode() : 0)) * 31 + numResults;
+      }
+   }
+
+   /**
+    * A chunk of input lines, standardized and formatted on a worker thread
+    */
+   private class Chunk implements Callable<Chunk> {
+      private final List<String> lines;
+      private final StringWriter output = new StringWriter();
+
+      Chunk(List<String> lines) {
+         this.lines = lines;
+      }
+
+      @Override
+      public Chunk call() throws IOException {
+         int size = lines.size();
+         String[] texts = new String[size];
+         String[] errors = new String[size];
+         List<List<Standardizer.PlaceScore>> results = new ArrayList<List<Standardizer.PlaceScore>>(size);
+
+         // group the lines by their options
+         Map<Options,List<Integer>> groups = new LinkedHashMap<Options, List<Integer>>();
+         for (int i = 0; i < size; i++) {
+            results.add(null);
+            Options options = defaults;
+            if (ndjsonIn) {
+               try {
+                  options = parse(lines.get(i), texts, i);
+               } catch (IOException e) {
+                  errors[i] = e.getMessage();
+                  continue;
+               }
+            }
+            else {
+               texts[i] = lines.get(i);
+            }
+            List<Integer> group = groups.get(options);
+            if (group == null) {
+               group = new ArrayList<Integer>();
+               groups.put(options, group);
+            }
+            group.add(i);
+         }
+
+         Standardizer standardizer = Standardizer.getInstance();
+         for (Map.Entry<Options,List<Integer>> entry : groups.entrySet()) {
+            Options options = entry.getKey();
+            List<String> groupTexts = new ArrayList<String>(entry.getValue().size());
+            for (int i : entry.getValue()) {
+               groupTexts.add(texts[i]);
+            }
+            try {
+               List<List<Standardizer.PlaceScore>> groupResults = standardizer.standardizeBatch(groupTexts,
+                       options.defaultCountry, options.mode, options.numResults);
+               for (int j = 0; j < groupResults.size(); j++) {
+                  results.set(entry.getValue().get(j), groupResults.get(j));
+               }
+            } catch (RuntimeException e) {
+               // standardize the lines one at a time so only the lines that fail are reported as errors
+               for (int i : entry.getValue()) {
+                  try {
+                     results.set(i, standardizer.standardize(texts[i], options.defaultCountry, options.mode,
+                                                             options.numResults));
+                  } catch (RuntimeException lineError) {
+                     errors[i] = "Error standardizing: "+lineError.getMessage();
+                  }
+               }
+            }
+         }
+
+         for (int i = 0; i < size; i++) {
+            String text = texts[i] != null ? texts[i] : lines.get(i);
+            if (csvOut) {
+               writeCsv(text, results.get(i), errors[i]);
+            }
+            else {
+               writeJson(text, results.get(i), errors[i]);
+            }
+         }
+         return this;
+      }
+
+      // read the text into texts[i], and return the options for the line
+      private Options parse(String line, String[] texts, int i) throws IOException {
+         Standardizer.Mode mode = defaults.mode;
+         String defaultCountry = defaults.defaultCountry;
+         int numResults = defaults.numResults;
+         JsonParser parser = jsonFactory.createJsonParser(line);
+         try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_STRING) {
+               texts[i] = parser.getText();
+            }
+            else if (token == JsonToken.START_OBJECT) {
+               while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                  String field = parser.getCurrentName();
+                  token = parser.nextToken();
+                  if ("text".equals(field)) {
+                     if (token != JsonToken.VALUE_STRING && token != JsonToken.VALUE_NULL) {
+                        throw new IOException("text must be a string");
+                     }
+                     texts[i] = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                  }
+                  else if ("mode".equals(field)) {
+                     if (token != JsonToken.VALUE_STRING) {
+                        throw new IOException("mode must be a string");
+                     }
+                     try {
+                        mode = Standardizer.Mode.valueOf(parser.getText().toUpperCase());
+                     } catch (IllegalArgumentException e) {
+                        throw new IOException("Unknown mode: "+parser.getText());
+                     }
+                  }
+                  else if ("defaultCountry".equals(field)) {
+                     defaultCountry = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                  }
+                  else if ("numResults".equals(field)) {
+                     if (token != JsonToken.VALUE_NUMBER_INT || parser.getIntValue() < 1) {
+                        throw new IOException("numResults must be a positive integer");
+                     }
+                     numResults = parser.getIntValue();
+                  }
+                  else {
+                     parser.skipChildren();
+                  }
+               }
+            }
+            if (texts[i] == null) {
+               throw new IOException("Expected a string or an object with text");
+            }
+         }
+         finally {
+            parser.close();
+         }
+         return new Options(mode, defaultCountry, numResults);
+      }
+
+      private void writeJson(String text, List<Standardizer.PlaceScore> results, String error) throws IOException {
+         JsonGenerator generator = jsonFactory.createJsonGenerator(output);
+         generator.writeStartObject();
+         generator.writeStringField("text", text);
+         if (error != null) {
+            generator.writeStringField("error", error);
+         }
+         else {
+            generator.writeArrayFieldStart("results");
+            for (Standardizer.PlaceScore ps : results) {
+               Place place = ps.getPlace();
+               generator.writeStartObject();
+               generator.writeNumberField("id", place.getId());
+               generator.writeStringField("name", place.getName());
+               generator.writeStringField("fullName", place.getFullName());
+               generator.writeNumberField("score", ps.getScore());
+               generator.writeEndObject();
+            }
+            generator.writeEndArray();
+         }
+         generator.writeEndObject();
+         generator.flush();
+         output.write('\n');
+      }
+
+      private void writeCsv(String text, List<Standardizer.PlaceScore> results, String error) {
+         if (error != null || results.size() == 0) {
+            output.write(csvField(text)+",,,,,"+(error != null ? csvField(error) : "")+"\n");
+         }
+         else {
+            for (Standardizer.PlaceScore ps : results) {
+               Place place = ps.getPlace();
+               output.write(csvField(text)+","+place.getId()+","+csvField(place.getName())+","+
+                            csvField(place.getFullName())+","+ps.getScore()+",\n");
+            }
+         }
+      }
+   }
+
+   // quote fields containing commas, quotes or line breaks
+   private static String csvField(String value) {
+      if (value == null) {
+         return "";
+      }
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+         return value;
+      }
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+   }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.service;
+
+import com.sun.jersey.api.container.ContainerFactory;
+import com.sun.jersey.api.core.ApplicationAdapter;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.folg.places.standardize.Standardizer;
+import org.folg.places.standardize.StandardizerMetrics;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Serves the REST service over the JDK's built-in http server, without a servlet container.
+ * Loads the standardizer and warms it up before opening the port, then sends warm-up requests through the server
+ * to compile the request handling code before it reports that it's ready.
+ */
+public class EmbeddedServer {
+   private static Logger logger = Logger.getLogger("org.folg.places.service");
+
+   // used to warm up when no warm-up file is given
+   private static final List<String> WARM_UP_TEXTS = Arrays.asList(
+           "Boston, Suffolk, Massachusetts, United States", "Springfield, Illinois", "Ohio", "New York City",
+           "London, England", "Yorkshire, England", "Glasgow, Lanarkshire, Scotland", "Dublin, Ireland",
+           "Ontario, Canada", "Bavaria, Germany", "Oslo, Norway", "Paris, France", "Amsterdam, Netherlands");
+
+   @Option(name = "-p", required = false, usage = "port to listen on; default is 8080")
+   private int port = 8080;
+
+   @Option(name = "-h", required = false, usage = "host name or address to listen on; default is all addresses")
+   private String host = null;
+
+   @Option(name = "-threads", required = false, usage = "number of threads handling requests; default is 2 per processor")
+   private int numThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+   @Option(name = "-b", required = false, usage = "number of connections to queue while all threads are busy; default is the system default")
+   private int backlog = 0;
+
+   @Option(name = "-w", required = false, usage = "place texts to warm up on, one per line")
+   private File warmUpIn = null;
+
+   @Option(name = "-wr", required = false, usage = "number of warm-up requests to send through the server; default is 200")
+   private int numWarmUpRequests = 200;
+
+   @Option(name = "-metrics", required = false, usage = "collect metrics, served at /metrics and over JMX")
+   private boolean collectMetrics = false;
+
+   private void doMain() throws IOException {
+      long startMillis = System.currentTimeMillis();
+
+      // load the indexes and warm up the standardizer before opening the port
+      Standardizer standardizer = Standardizer.getInstance();
+      long loadedMillis = System.currentTimeMillis();
+      List<String> texts = readWarmUpTexts();
+      for (Standardizer.Mode mode : Standardizer.Mode.values()) {
+         for (String text : texts) {
+            standardizer.standardize(text, null, mode, 3);
+         }
+      }
+
+      final AtomicInteger threadNumber = new AtomicInteger();
+      final ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "places-http-"+threadNumber.incrementAndGet());
+         }
+      });
+      HttpHandler handler = ContainerFactory.createContainer(HttpHandler.class, new ApplicationAdapter(new ServiceManager()));
+      InetSocketAddress address = host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port);
+      final HttpServer server = HttpServer.create(address, backlog);
+      server.createContext("/", handler);
+      server.setExecutor(executor);
+      server.start();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         @Override
+         public void run() {
+            server.stop(1);
+            executor.shutdown();
+         }
+      });
+
+      warmUp(texts, server.getAddress());
+      long readyMillis = System.currentTimeMillis();
+      if (collectMetrics) {
+         // start collecting after warm-up so the warm-up calls aren't counted
+         if (standardizer.getMetrics() == null) {
+            StandardizerMetrics metrics = new StandardizerMetrics();
+            metrics.registerMBean();
+            standardizer.setMetrics(metrics);
+         }
+         else {
+            standardizer.getMetrics().reset();
+         }
+      }
+      System.out.println("Ready on port "+server.getAddress().getPort()+" threads="+numThreads+
+              " load (millis)="+(loadedMillis-startMillis)+" warm-up (millis)="+(readyMillis-loadedMillis));
+   }
+
+   private List<String> readWarmUpTexts() throws IOException {
+      if (warmUpIn == null) {
+         return WARM_UP_TEXTS;
+      }
+      List<String> texts = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(warmUpIn), "UTF8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            texts.add(line);
+         }
+      }
+      finally {
+         reader.close();
+      }
+      return texts;
+   }
+
+   /**
+    * Send some of the warm-up texts through the server so the request handling code is compiled too
+    */
+   private void warmUp(List<String> texts, InetSocketAddress address) throws IOException {
+      // connect to the address the server is bound to, or to this host if it's bound to all addresses
+      InetAddress serverAddress = address.getAddress();
+      String serverHost = serverAddress == null || serverAddress.isAnyLocalAddress() ?
+              "localhost" : serverAddress.getHostAddress();
+      for (int i = 0; i < numWarmUpRequests && texts.size() > 0; i++) {
+         String text = texts.get(i % texts.size());
+         URL url = new URL("http", serverHost, address.getPort(),
+                           "/scores/"+URLEncoder.encode(text, "UTF-8").replace("+", "%20"));
+         HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+         conn.setRequestProperty("Accept", "application/json");
+         try {
+            int status = conn.getResponseCode();
+            InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+               // drain the response so the connection can be reused
+               byte[] buf = new byte[8192];
+               while (in.read(buf) > 0) {
+               }
+               in.close();
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+               logger.warning("Warm-up request for "+text+" returned "+status);
+            }
+         } catch (IOException e) {
+            // a failed warm-up request shouldn't keep the server from starting
+            logger.warning("Warm-up request for "+text+" failed: "+e.getMessage());
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      // the server writes headers and body separately; without this, small responses wait on delayed acks
+      if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+         System.setProperty("sun.net.httpserver.nodelay", "true");
+      }
+      EmbeddedServer self = new EmbeddedServer();
+      CmdLineParser parser = new CmdLineParser(self);
+      try {
+         parser.parseArgument(args);
+         self.doMain();
+      } catch (CmdLineException e) {
+         System.err.println(e.getMessage());
+         parser.printUsage(System.err);
+      }
+   }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.service;
+
+import org.folg.places.standardize.Standardizer;
+import org.folg.places.standardize.StandardizerMetrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+/**
+ *  Return the standardizer metrics, one "name value" per line; 404 if metrics aren't being collected
+ */
+@Path("/metrics")
+public class MetricsService {
+   @GET
+   @Produces(MediaType.TEXT_PLAIN)
+   public String get() {
+      StandardizerMetrics metrics = Standardizer.getInstance().getMetrics();
+      if (metrics == null) {
+         throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).build());
+      }
+      StringBuilder buf = new StringBuilder();
+      for (Map.Entry<String,Number> entry : metrics.getValues().entrySet()) {
+         buf.append(entry.getKey());
+         buf.append(' ');
+         buf.append(entry.getValue());
+         buf.append('\n');
+      }
+      return buf.toString();
+   }
+}
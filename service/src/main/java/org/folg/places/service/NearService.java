@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.service;
+
+import org.folg.places.standardize.Place;
+import org.folg.places.standardize.Standardizer;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+/**
+ *  Return the places near a point, nearest first
+ */
+@Path("/near")
+public class NearService {
+   @GET
+   @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+   public List<Place> get(@QueryParam("lat") Double latitude,
+                          @QueryParam("lon") Double longitude,
+                          @QueryParam("radius") @DefaultValue("50") double radiusKm,
+                          @QueryParam("numResults") @DefaultValue("10") int numResults) {
+      if (latitude == null || longitude == null) {
+         throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).build());
+      }
+      checkRadius(radiusKm);
+      StandardizeService.checkNumResults(numResults);
+      try {
+         return Standardizer.getInstance().getPlacesNear(latitude, longitude, radiusKm, numResults);
+      } catch (UnsupportedOperationException e) {
+         // places are read from the database
+         throw new WebApplicationException(Response.status(501).entity(e.getMessage()).type(MediaType.TEXT_PLAIN).build());
+      }
+   }
+
+   // respond 400 to a negative or infinite radius
+   static double checkRadius(double radiusKm) {
+      if (!(radiusKm >= 0) || Double.isInfinite(radiusKm)) {
+         throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).build());
+      }
+      return radiusKm;
+   }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.service;
+
+import org.folg.places.standardize.GeoHint;
+import org.folg.places.standardize.Standardizer;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.List;
+
+/**
+ *  Return the top-scoring standardized places for a text, best first
+ */
+@Path("/scores")
+public class ScoresService {
+   @GET
+   @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+   @Path("{text}")
+   public List<Standardizer.PlaceScore> get(@PathParam("text") String text,
+                                            @QueryParam("mode") @DefaultValue("BEST") String mode,
+                                            @QueryParam("defaultCountry") String defaultCountry,
+                                            @QueryParam("numResults") @DefaultValue("1") int numResults,
+                                            @QueryParam("lat") Double latitude,
+                                            @QueryParam("lon") Double longitude,
+                                            @QueryParam("radius") @DefaultValue("50") double radiusKm) {
+      GeoHint near = latitude != null && longitude != null ? new GeoHint(latitude, longitude, NearService.checkRadius(radiusKm)) : null;
+      return Standardizer.getInstance().standardize(text, defaultCountry, near, StandardizeService.parseMode(mode),
+                                                    StandardizeService.checkNumResults(numResults));
+   }
+}
@@ -27,6 +27,9 @@ public class ServiceManager extends Application {
    public Set<Class<?>> getClasses() {
       Set<Class<?>> s = new HashSet<Class<?>>();
       s.add(StandardizeService.class);
+      s.add(ScoresService.class);
+      s.add(MetricsService.class);
+      s.add(NearService.class);
       return s;
    }
 }
@@ -19,11 +19,19 @@ package org.folg.places.service;
 import org.folg.places.standardize.Place;
 import org.folg.places.standardize.Standardizer;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.InputStream;
 
 /**
  *  Return standardized place
@@ -45,4 +53,44 @@ public class StandardizeService {
       Place result = Standardizer.getInstance().standardize(text, defaultCountry);
       return result;
    }
+
+   /**
+    * Standardize a body of place texts, one per line, streaming back the results in the same order.
+    * The body is either plain text, or ndjson where each line is a JSON string or an object with text
+    * and optionally mode, defaultCountry and numResults to override the query parameters.
+    * Results are written as ndjson, one object per line, or as csv with one row per result if csv is accepted.
+    */
+   @POST
+   @Consumes({MediaType.TEXT_PLAIN, BulkStandardizer.NDJSON})
+   @Produces({BulkStandardizer.NDJSON, BulkStandardizer.CSV})
+   public Response post(InputStream body,
+                        @HeaderParam("Content-Type") String contentType,
+                        @HeaderParam("Accept") String accept,
+                        @QueryParam("mode") @DefaultValue("BEST") String mode,
+                        @QueryParam("defaultCountry") String defaultCountry,
+                        @QueryParam("numResults") @DefaultValue("1") int numResults) {
+      Standardizer.Mode standardizeMode = parseMode(mode);
+      boolean ndjsonIn = contentType != null && contentType.startsWith(BulkStandardizer.NDJSON);
+      boolean csvOut = accept != null && accept.contains(BulkStandardizer.CSV) && !accept.contains(BulkStandardizer.NDJSON);
+      BulkStandardizer bulk = new BulkStandardizer(body, ndjsonIn, csvOut, standardizeMode, defaultCountry,
+                                                   checkNumResults(numResults));
+      return Response.ok(bulk, csvOut ? BulkStandardizer.CSV : BulkStandardizer.NDJSON).build();
+   }
+
+   // respond 400 to an unknown mode instead of 404
+   static Standardizer.Mode parseMode(String mode) {
+      try {
+         return Standardizer.Mode.valueOf(mode.toUpperCase());
+      } catch (IllegalArgumentException e) {
+         throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).build());
+      }
+   }
+
+   // respond 400 if no results are asked for
+   static int checkNumResults(int numResults) {
+      if (numResults < 1) {
+         throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).build());
+      }
+      return numResults;
+   }
 }
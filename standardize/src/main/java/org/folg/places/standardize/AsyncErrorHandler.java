@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Passes errors on to another error handler on a background thread, so handlers that write files or
+ * talk to other systems don't hold up standardizing.
+ * Errors are queued without waiting; if the queue is full, the error is dropped and counted.
+ * The handler is called from a single thread, in the order the errors were queued, and if it's Flushable,
+ * it's flushed after each batch of errors.
+ * Call close to pass on the queued errors and stop the thread.
+ */
+public class AsyncErrorHandler implements ErrorHandler {
+   private static Logger logger = Logger.getLogger("org.folg.places.standardize");
+
+   private static final int MAX_BATCH_SIZE = 256;
+
+   private final ErrorHandler errorHandler;
+   private final BlockingQueue<Event> queue;
+   private final AtomicLong dropped = new AtomicLong();
+   private final Thread thread;
+   // held to queue an error, and exclusively to close, so no error is queued after STOP
+   private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+   private boolean closed = false;
+
+   /**
+    * @param errorHandler called on the background thread
+    * @param capacity number of errors that can be queued
+    */
+   public AsyncErrorHandler(ErrorHandler errorHandler, int capacity) {
+      this.errorHandler = errorHandler;
+      this.queue = new ArrayBlockingQueue<Event>(capacity);
+      this.thread = new Thread("async-error-handler") {
+         @Override
+         public void run() {
+            drain();
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   // an error, with the arguments it was reported with
+   private static abstract class Event {
+      final String text;
+      final List<List<String>> levels;
+
+      Event(String text, List<List<String>> levels) {
+         this.text = text;
+         this.levels = levels;
+      }
+
+      abstract void dispatch(ErrorHandler errorHandler);
+   }
+
+   // queued by close after the last error
+   private static final Event STOP = new Event(null, null) {
+      void dispatch(ErrorHandler errorHandler) {
+      }
+   };
+
+   private void drain() {
+      List<Event> batch = new ArrayList<Event>(MAX_BATCH_SIZE);
+      boolean stopped = false;
+      while (!stopped) {
+         try {
+            batch.add(queue.take());
+         } catch (InterruptedException e) {
+            return;
+         }
+         queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+         for (Event event : batch) {
+            if (event == STOP) {
+               stopped = true;
+               break;
+            }
+            try {
+               event.dispatch(errorHandler);
+            } catch (RuntimeException e) {
+               logger.warning("Error handler failed on "+event.text+": "+e);
+            }
+         }
+         batch.clear();
+         if (errorHandler instanceof Flushable) {
+            try {
+               ((Flushable)errorHandler).flush();
+            } catch (IOException e) {
+               logger.warning("Error flushing error handler: "+e.getMessage());
+            }
+         }
+      }
+   }
+
+   private void enqueue(Event event) {
+      closeLock.readLock().lock();
+      try {
+         if (closed || !queue.offer(event)) {
+            dropped.incrementAndGet();
+         }
+      }
+      finally {
+         closeLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * @return number of errors dropped because the queue was full or the handler was closed
+    */
+   public long getDroppedCount() {
+      return dropped.get();
+   }
+
+   /**
+    * Pass on the errors already queued, then stop the background thread; errors reported afterward are dropped
+    */
+   public void close() throws InterruptedException {
+      boolean closing;
+      closeLock.writeLock().lock();
+      try {
+         closing = !closed;
+         closed = true;
+      }
+      finally {
+         closeLock.writeLock().unlock();
+      }
+      if (closing) {
+         // every error queued before this has been queued; waits for room if the queue is full
+         queue.put(STOP);
+      }
+      thread.join();
+   }
+
+   public void tokenNotFound(String text, List<List<String>> levels, final int levelNumber, final List<Integer> matchedParentIds) {
+      enqueue(new Event(text, levels) {
+         void dispatch(ErrorHandler errorHandler) {
+            errorHandler.tokenNotFound(text, levels, levelNumber, matchedParentIds);
+         }
+      });
+   }
+
+   public void skippingParentLevel(String text, List<List<String>> levels, final int levelNumber, final List<Integer> matchedPlaceIds) {
+      enqueue(new Event(text, levels) {
+         void dispatch(ErrorHandler errorHandler) {
+            errorHandler.skippingParentLevel(text, levels, levelNumber, matchedPlaceIds);
+         }
+      });
+   }
+
+   public void typeNotFound(String text, List<List<String>> levels, final int levelNumber, final List<Integer> matchedPlaceIds) {
+      enqueue(new Event(text, levels) {
+         void dispatch(ErrorHandler errorHandler) {
+            errorHandler.typeNotFound(text, levels, levelNumber, matchedPlaceIds);
+         }
+      });
+   }
+
+   public void ambiguous(String text, List<List<String>> levels, final List<Integer> matchedPlaceIds, Place topPlace) {
+      // the caller gets the top place back and may change it
+      final Place place = topPlace.copy();
+      enqueue(new Event(text, levels) {
+         void dispatch(ErrorHandler errorHandler) {
+            errorHandler.ambiguous(text, levels, matchedPlaceIds, place);
+         }
+      });
+   }
+
+   public void placeNotFound(String text, List<List<String>> levels) {
+      enqueue(new Event(text, levels) {
+         void dispatch(ErrorHandler errorHandler) {
+            errorHandler.placeNotFound(text, levels);
+         }
+      });
+   }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Place index read on demand from the places table.
+ * Recently-used places are cached locally; if a memcache tier is configured, it's checked before the database
+ * and places read from the database are written back to it.
+ * Rows are place ids; a place's ancestor closure and full name are computed the first time they're needed
+ * and cached with the place, so places share the cached full names of the places they're located in.
+ */
+class DatabasePlaceIndex implements PlaceIndex {
+   private static final int NO_ROW = -1;
+   // cached for ids that aren't in the table, so repeated misses don't go back to the database
+   private static final Entry NOT_FOUND = new Entry(new Place(), "", new int[0]);
+   private static final String MEMCACHE_NAMESPACE = "i|";
+   private static final int MAX_PARAMETERS = 500;
+   // located-in chains are only a few levels deep; this just guards against bad data
+   private static final int MAX_PREFETCH_LEVELS = 16;
+
+   private static class Entry {
+      private final Place place;
+      private final String normalizedName;
+      private final int[] typeIds;
+      private volatile int[] ancestors = null;
+      private volatile String fullName = null;
+
+      Entry(Place place, String normalizedName, int[] typeIds) {
+         this.place = place;
+         this.normalizedName = normalizedName;
+         this.typeIds = typeIds;
+      }
+   }
+
+   private final DataSource dataSource;
+   private final MemcacheTier memcache;
+   private final LruCache<Integer,Entry> cache;
+   private final TypeTable typeTable = new TypeTable();
+   private final Normalizer normalizer = Normalizer.getInstance();
+
+   /**
+    * @param memcache shared cache; may be null
+    */
+   DatabasePlaceIndex(DataSource dataSource, MemcacheTier memcache, int cacheSize) {
+      this.dataSource = dataSource;
+      this.memcache = memcache;
+      this.cache = new LruCache<Integer,Entry>(cacheSize);
+   }
+
+   LruCache<?,?> getCache() {
+      return cache;
+   }
+
+   private Entry getEntry(int id) {
+      Entry entry = cache.get(id);
+      if (entry == null) {
+         entry = load(Collections.singletonList(id)).get(id);
+         cache.put(id, entry);
+      }
+      return entry == NOT_FOUND ? null : entry;
+   }
+
+   /**
+    * Read the places and their ancestors that aren't already cached, a level at a time
+    */
+   @Override
+   public void prefetch(int[] ids) {
+      Set<Integer> uncached = new LinkedHashSet<Integer>();
+      for (int id : ids) {
+         if (!cache.containsKey(id)) {
+            uncached.add(id);
+         }
+      }
+      List<Integer> missing = new ArrayList<Integer>(uncached);
+      for (int level = 0; level < MAX_PREFETCH_LEVELS && missing.size() > 0; level++) {
+         Set<Integer> parents = new HashSet<Integer>();
+         for (Map.Entry<Integer,Entry> entry : load(missing).entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+            Place p = entry.getValue().place;
+            if (p.getLocatedInId() > 0) {
+               parents.add(p.getLocatedInId());
+            }
+            if (p.getAlsoLocatedInIds() != null) {
+               for (int id : p.getAlsoLocatedInIds()) {
+                  parents.add(id);
+               }
+            }
+         }
+         missing.clear();
+         for (Integer id : parents) {
+            if (!cache.containsKey(id)) {
+               missing.add(id);
+            }
+         }
+      }
+   }
+
+   // read the places from memcache, then the rest from the database
+   private Map<Integer,Entry> load(List<Integer> ids) {
+      Map<Integer,Entry> result = new HashMap<Integer,Entry>();
+      List<Integer> remaining = ids;
+      if (memcache != null) {
+         List<String> keys = new ArrayList<String>(ids.size());
+         for (Integer id : ids) {
+            keys.add(memcache.getKey(MEMCACHE_NAMESPACE, id.toString()));
+         }
+         Map<String,String> values = memcache.getBulk(keys);
+         remaining = new ArrayList<Integer>(ids.size());
+         for (int i = 0; i < ids.size(); i++) {
+            String value = values.get(keys.get(i));
+            if (value != null) {
+               result.put(ids.get(i), toEntry(ids.get(i), value));
+            }
+            else {
+               remaining.add(ids.get(i));
+            }
+         }
+      }
+
+      for (int start = 0; start < remaining.size(); start += MAX_PARAMETERS) {
+         List<Integer> batch = remaining.subList(start, Math.min(start + MAX_PARAMETERS, remaining.size()));
+         Map<Integer,String> values = read(batch);
+         for (Integer id : batch) {
+            String value = values.get(id);
+            if (value == null) {
+               value = "";
+            }
+            result.put(id, toEntry(id, value));
+            if (memcache != null) {
+               memcache.set(memcache.getKey(MEMCACHE_NAMESPACE, id.toString()), value);
+            }
+         }
+      }
+      return result;
+   }
+
+   // the row was returned by getRow, but the entry may have been evicted since then
+   private Place getPlace(int row) {
+      Entry entry = getEntry(row);
+      if (entry == null) {
+         throw new IllegalArgumentException("Place not found: "+row);
+      }
+      return entry.place;
+   }
+
+   @Override
+   public int getRow(int id) {
+      return getEntry(id) != null ? id : NO_ROW;
+   }
+
+   @Override
+   public int getId(int row) {
+      return row;
+   }
+
+   @Override
+   public String getName(int row) {
+      return getPlace(row).getName();
+   }
+
+   @Override
+   public String getFullName(int row) {
+      Entry entry = getEntry(row);
+      if (entry == null) {
+         throw new IllegalArgumentException("Place not found: "+row);
+      }
+      if (entry.fullName == null) {
+         Place p = entry.place;
+         // as in PlaceStore, stop at a located-in place that isn't in the table
+         int locatedIn = p.getLocatedInId();
+         if (locatedIn > 0 && getEntry(locatedIn) != null) {
+            entry.fullName = p.getName() + ", " + getFullName(locatedIn);
+         }
+         else {
+            entry.fullName = p.getName();
+         }
+      }
+      return entry.fullName;
+   }
+
+   @Override
+   public String[] getAltNames(int row) {
+      String[] altNames = getPlace(row).getAltNames();
+      return altNames != null ? altNames.clone() : null;
+   }
+
+   @Override
+   public String[] getTypes(int row) {
+      String[] types = getPlace(row).getTypes();
+      return types != null ? types.clone() : null;
+   }
+
+   @Override
+   public boolean nameContains(int row, String token) {
+      Entry entry = getEntry(row);
+      return entry != null && entry.normalizedName.indexOf(token) >= 0;
+   }
+
+   @Override
+   public boolean typeContains(int row, String token) {
+      Entry entry = getEntry(row);
+      if (entry != null) {
+         for (int typeId : entry.typeIds) {
+            if (typeTable.matches(typeId, token)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public int getLocatedInId(int row) {
+      return getPlace(row).getLocatedInId();
+   }
+
+   @Override
+   public int[] getAlsoLocatedInIds(int row) {
+      int[] ids = getPlace(row).getAlsoLocatedInIds();
+      return ids != null ? ids.clone() : null;
+   }
+
+   @Override
+   public boolean hasAncestorIn(int row, int[] ids) {
+      Entry entry = getEntry(row);
+      if (entry == null) {
+         return false;
+      }
+      if (entry.ancestors == null) {
+         entry.ancestors = getAncestors(entry.place);
+      }
+      for (int ancestor : entry.ancestors) {
+         if (Arrays.binarySearch(ids, ancestor) >= 0) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // same closure as PlaceStore: ancestors that aren't in the table are recorded but can't be followed further;
+   // the place itself is never recorded, even if the located-in data has a cycle
+   private int[] getAncestors(Place place) {
+      int self = place.getId();
+      IntList found = new IntList();
+      IntList stack = new IntList();
+      pushParents(place, self, found, stack);
+      while (stack.size() > 0) {
+         Entry entry = getEntry(stack.pop());
+         if (entry != null) {
+            pushParents(entry.place, self, found, stack);
+         }
+      }
+      int[] ancestors = found.toArray();
+      Arrays.sort(ancestors);
+      return ancestors;
+   }
+
+   private void pushParents(Place place, int self, IntList found, IntList stack) {
+      if (place.getLocatedInId() > 0) {
+         pushParent(place.getLocatedInId(), self, found, stack);
+      }
+      if (place.getAlsoLocatedInIds() != null) {
+         for (int id : place.getAlsoLocatedInIds()) {
+            pushParent(id, self, found, stack);
+         }
+      }
+   }
+
+   private void pushParent(int id, int self, IntList found, IntList stack) {
+      if (id != self && !found.contains(id)) {
+         found.add(id);
+         stack.add(id);
+      }
+   }
+
+   @Override
+   public int getLevel(int row) {
+      return getPlace(row).getLevel();
+   }
+
+   @Override
+   public int getCountry(int row) {
+      return getPlace(row).getCountry();
+   }
+
+   @Override
+   public double getLatitude(int row) {
+      return getPlace(row).getLatitude();
+   }
+
+   @Override
+   public double getLongitude(int row) {
+      return getPlace(row).getLongitude();
+   }
+
+   // value has the places columns after id, separated by |, as in places.csv; empty if the place wasn't found
+   private Entry toEntry(int id, String value) {
+      if (value.length() == 0) {
+         return NOT_FOUND;
+      }
+      String[] fields = value.split("\\|", -1);
+      Place p = new Place();
+      p.setId(id);
+      p.setName(fields[0]);
+      p.setAltNames(toStrings(fields[1]));
+      p.setTypes(toStrings(fields[2]));
+      p.setLocatedInId(Integer.parseInt(fields[3]));
+      if (fields[4].length() > 0) {
+         String[] idStrings = fields[4].split(",");
+         int[] alsoLocatedInIds = new int[idStrings.length];
+         for (int i = 0; i < idStrings.length; i++) {
+            alsoLocatedInIds[i] = Integer.parseInt(idStrings[i]);
+         }
+         p.setAlsoLocatedInIds(alsoLocatedInIds);
+      }
+      p.setLevel(Integer.parseInt(fields[5]));
+      p.setCountry(Integer.parseInt(fields[6]));
+      p.setLatitude(fields[7].length() > 0 ? Double.parseDouble(fields[7]) : 0.0);
+      p.setLongitude(fields[8].length() > 0 ? Double.parseDouble(fields[8]) : 0.0);
+      int[] typeIds = new int[p.getTypes() != null ? p.getTypes().length : 0];
+      for (int i = 0; i < typeIds.length; i++) {
+         typeIds[i] = typeTable.getTypeId(p.getTypes()[i]);
+      }
+      return new Entry(p, normalizer.normalize(p.getName()), typeIds);
+   }
+
+   private static String[] toStrings(String value) {
+      return value.length() > 0 ? value.split(",") : null;
+   }
+
+   private static String toValue(String value) {
+      return value != null ? value : "";
+   }
+
+   // @return places columns after id by id for the places found
+   private Map<Integer,String> read(List<Integer> ids) {
+      Map<Integer,String> result = new HashMap<Integer,String>();
+      Connection conn = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try {
+         conn = dataSource.getConnection();
+         stmt = conn.prepareStatement("select id, name, alt_names, types, located_in_id, also_located_in_ids, " +
+                                      "level, country_id, latitude, longitude from places where id in (" +
+                                      getParameters(ids.size())+")");
+         // id is a varchar column; compare as strings so the primary key is used
+         for (int i = 0; i < ids.size(); i++) {
+            stmt.setString(i+1, ids.get(i).toString());
+         }
+         rs = stmt.executeQuery();
+         while (rs.next()) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(toValue(rs.getString(2))).append('|');
+            buf.append(toValue(rs.getString(3))).append('|');
+            buf.append(toValue(rs.getString(4))).append('|');
+            buf.append(rs.getInt(5)).append('|');
+            buf.append(toValue(rs.getString(6))).append('|');
+            buf.append(rs.getInt(7)).append('|');
+            buf.append(rs.getInt(8)).append('|');
+            buf.append(toValue(rs.getString(9))).append('|');
+            buf.append(toValue(rs.getString(10)));
+            result.put(Integer.parseInt(rs.getString(1).trim()), buf.toString());
+         }
+         return result;
+      }
+      catch (SQLException e) {
+         throw new RuntimeException("Error reading places: "+e.getMessage());
+      }
+      finally {
+         close(conn, stmt, rs);
+      }
+   }
+
+   static String getParameters(int count) {
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+         if (i > 0) {
+            buf.append(',');
+         }
+         buf.append('?');
+      }
+      return buf.toString();
+   }
+
+   static void close(Connection conn, PreparedStatement stmt, ResultSet rs) {
+      try {
+         if (rs != null) {
+            rs.close();
+         }
+         if (stmt != null) {
+            stmt.close();
+         }
+         if (conn != null) {
+            conn.close();
+         }
+      }
+      catch (SQLException e) {
+         // ignore
+      }
+   }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Word index read on demand from the place_words table.
+ * Recently-used words are cached locally; if a memcache tier is configured, it's checked before the database
+ * and words read from the database are written back to it.
+ */
+class DatabaseWordIndex implements WordIndex {
+   // cached for words that aren't in the table, so repeated misses don't go back to the database
+   private static final int[] NOT_FOUND = new int[0];
+   private static final String MEMCACHE_NAMESPACE = "w|";
+   // words per query, to stay within the driver's limits on parameters and packet size
+   private static final int MAX_PARAMETERS = 500;
+
+   private final DataSource dataSource;
+   private final MemcacheTier memcache;
+   private final LruCache<String,int[]> cache;
+
+   /**
+    * @param memcache shared cache; may be null
+    */
+   DatabaseWordIndex(DataSource dataSource, MemcacheTier memcache, int cacheSize) {
+      this.dataSource = dataSource;
+      this.memcache = memcache;
+      this.cache = new LruCache<String,int[]>(cacheSize);
+   }
+
+   LruCache<?,?> getCache() {
+      return cache;
+   }
+
+   @Override
+   public int[] lookup(String word) {
+      if (word == null) {
+         return null;
+      }
+      int[] ids = cache.get(word);
+      if (ids == null) {
+         ids = load(Collections.singletonList(word)).get(word);
+         cache.put(word, ids);
+      }
+      return ids == NOT_FOUND ? null : ids;
+   }
+
+   @Override
+   public int[][] lookupSuffixes(CharSequence text, int[] starts) {
+      int[][] result = new int[starts.length][];
+      for (int i = 0; i < starts.length; i++) {
+         result[i] = lookup(text.subSequence(starts[i], text.length()).toString());
+      }
+      return result;
+   }
+
+   @Override
+   public List<WordMatch> lookupFuzzy(String word, int maxDistance) {
+      // the table can only be searched for exact words
+      List<WordMatch> matches = new ArrayList<WordMatch>(1);
+      int[] ids = lookup(word);
+      if (ids != null) {
+         matches.add(new WordMatch(word, 0, ids));
+      }
+      return matches;
+   }
+
+   @Override
+   public void prefetch(Collection<String> words) {
+      Set<String> missing = new LinkedHashSet<String>();
+      for (String word : words) {
+         if (!cache.containsKey(word)) {
+            missing.add(word);
+         }
+      }
+      if (missing.size() > 0) {
+         for (Map.Entry<String,int[]> entry : load(new ArrayList<String>(missing)).entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+         }
+      }
+   }
+
+   // read the words from memcache, then the rest from the database
+   private Map<String,int[]> load(List<String> words) {
+      Map<String,int[]> result = new HashMap<String,int[]>();
+      List<String> remaining = words;
+      if (memcache != null) {
+         List<String> keys = new ArrayList<String>(words.size());
+         for (String word : words) {
+            String key = memcache.getKey(MEMCACHE_NAMESPACE, word);
+            if (key != null) {
+               keys.add(key);
+            }
+         }
+         Map<String,String> values = memcache.getBulk(keys);
+         remaining = new ArrayList<String>(words.size());
+         for (String word : words) {
+            String value = values.get(memcache.getKey(MEMCACHE_NAMESPACE, word));
+            if (value != null) {
+               result.put(word, toIds(value));
+            }
+            else {
+               remaining.add(word);
+            }
+         }
+      }
+
+      for (int start = 0; start < remaining.size(); start += MAX_PARAMETERS) {
+         List<String> batch = remaining.subList(start, Math.min(start + MAX_PARAMETERS, remaining.size()));
+         Map<String,String> values = read(batch);
+         for (String word : batch) {
+            String value = values.get(word);
+            if (value == null) {
+               value = "";
+            }
+            result.put(word, toIds(value));
+            if (memcache != null) {
+               String key = memcache.getKey(MEMCACHE_NAMESPACE, word);
+               if (key != null) {
+                  memcache.set(key, value);
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private static int[] toIds(String value) {
+      if (value.length() == 0) {
+         return NOT_FOUND;
+      }
+      String[] idStrings = value.split(",");
+      int[] ids = new int[idStrings.length];
+      for (int i = 0; i < idStrings.length; i++) {
+         ids[i] = Integer.parseInt(idStrings[i]);
+      }
+      Arrays.sort(ids);
+      return ids;
+   }
+
+   // @return ids column by word for the words found
+   private Map<String,String> read(List<String> words) {
+      Map<String,String> result = new HashMap<String,String>();
+      Connection conn = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try {
+         conn = dataSource.getConnection();
+         stmt = conn.prepareStatement("select word, ids from place_words where word in (" +
+                                      DatabasePlaceIndex.getParameters(words.size())+")");
+         for (int i = 0; i < words.size(); i++) {
+            stmt.setString(i+1, words.get(i));
+         }
+         rs = stmt.executeQuery();
+         while (rs.next()) {
+            String value = rs.getString(2);
+            result.put(rs.getString(1), value != null ? value : "");
+         }
+         return result;
+      }
+      catch (SQLException e) {
+         throw new RuntimeException("Error reading place words: "+e.getMessage());
+      }
+      finally {
+         DatabasePlaceIndex.close(conn, stmt, rs);
+      }
+   }
+}
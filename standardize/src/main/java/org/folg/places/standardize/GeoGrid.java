@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the places in a place store: the rows are sorted by the one-degree cell their coordinates fall in,
+ * so the places near a point are found by reading the cells that overlap the search radius.
+ * Places at 0,0 are taken to have no coordinates and aren't indexed.
+ */
+class GeoGrid {
+   static final double EARTH_RADIUS_KM = 6371.0;
+   private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+   private static final int LAT_CELLS = 180;
+   private static final int LON_CELLS = 360;
+
+   private final PlaceStore store;
+   // rows in cell order; cell c holds rows[cellStarts[c]] to rows[cellStarts[c+1]-1]
+   private final int[] cellStarts;
+   private final int[] rows;
+
+   GeoGrid(PlaceStore store) {
+      this.store = store;
+      int size = store.size();
+      int[] cells = new int[size];
+      int[] counts = new int[LAT_CELLS * LON_CELLS + 1];
+      int indexed = 0;
+      for (int row = 0; row < size; row++) {
+         double lat = store.getLatitude(row);
+         double lon = store.getLongitude(row);
+         if (hasCoordinates(lat, lon)) {
+            cells[row] = getCell(lat, lon);
+            counts[cells[row] + 1]++;
+            indexed++;
+         }
+         else {
+            cells[row] = -1;
+         }
+      }
+      for (int c = 1; c < counts.length; c++) {
+         counts[c] += counts[c-1];
+      }
+      cellStarts = counts.clone();
+      rows = new int[indexed];
+      for (int row = 0; row < size; row++) {
+         if (cells[row] >= 0) {
+            rows[counts[cells[row]]++] = row;
+         }
+      }
+   }
+
+   PlaceStore getStore() {
+      return store;
+   }
+
+   static boolean hasCoordinates(double lat, double lon) {
+      return lat != 0.0 || lon != 0.0;
+   }
+
+   private static int getLatCell(double lat) {
+      return Math.max(0, Math.min(LAT_CELLS - 1, (int)Math.floor(lat + 90)));
+   }
+
+   private static int getLonCell(double lon) {
+      int cell = (int)Math.floor(lon + 180) % LON_CELLS;
+      return cell < 0 ? cell + LON_CELLS : cell;
+   }
+
+   private static int getCell(double lat, double lon) {
+      return getLatCell(lat) * LON_CELLS + getLonCell(lon);
+   }
+
+   /**
+    * Great-circle distance in kilometers
+    */
+   static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+      double dLat = Math.toRadians(lat2 - lat1);
+      double dLon = Math.toRadians(lon2 - lon1);
+      double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                 Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+      return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+   }
+
+   /**
+    * @return true if the second point has coordinates and is within radiusKm of the first
+    */
+   static boolean isWithin(double lat1, double lon1, double lat2, double lon2, double radiusKm) {
+      // most places far away are ruled out by latitude alone, without the trigonometry
+      return hasCoordinates(lat2, lon2) && Math.abs(lat2 - lat1) * KM_PER_DEGREE <= radiusKm &&
+             distanceKm(lat1, lon1, lat2, lon2) <= radiusKm;
+   }
+
+   /**
+    * @return rows of the places within radiusKm of the point, nearest first, at most maxResults of them
+    */
+   int[] getRowsNear(double lat, double lon, double radiusKm, int maxResults) {
+      double latDegrees = radiusKm / KM_PER_DEGREE;
+      int minLatCell = getLatCell(lat - latDegrees);
+      int maxLatCell = getLatCell(lat + latDegrees);
+      // longitude degrees shrink toward the poles; search every longitude if the circle reaches a pole
+      double maxAbsLat = Math.max(Math.abs(lat - latDegrees), Math.abs(lat + latDegrees));
+      int lonCellCount = LON_CELLS;
+      int minLonCell = 0;
+      if (maxAbsLat < 90) {
+         double lonDegrees = latDegrees / Math.cos(Math.toRadians(maxAbsLat));
+         if (2 * lonDegrees + 1 < LON_CELLS) {
+            // the cells may wrap around the antimeridian
+            minLonCell = getLonCell(lon - lonDegrees);
+            int maxLonCell = getLonCell(lon + lonDegrees);
+            lonCellCount = (maxLonCell - minLonCell + LON_CELLS) % LON_CELLS + 1;
+         }
+      }
+
+      // distances and rows packed together so they sort by distance, then row
+      long[] found = new long[16];
+      int count = 0;
+      for (int latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+         for (int i = 0; i < lonCellCount; i++) {
+            int cell = latCell * LON_CELLS + (minLonCell + i) % LON_CELLS;
+            for (int j = cellStarts[cell]; j < cellStarts[cell+1]; j++) {
+               int row = rows[j];
+               double distance = distanceKm(lat, lon, store.getLatitude(row), store.getLongitude(row));
+               if (distance <= radiusKm) {
+                  if (count == found.length) {
+                     found = Arrays.copyOf(found, count * 2);
+                  }
+                  // whole meters are plenty to order places
+                  found[count++] = (Math.round(distance * 1000) << 32) | row;
+               }
+            }
+         }
+      }
+      Arrays.sort(found, 0, count);
+      int[] result = new int[Math.max(0, Math.min(count, maxResults))];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (int)found[i];
+      }
+      return result;
+   }
+}
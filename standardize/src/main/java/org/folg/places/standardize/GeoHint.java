@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+/**
+ * Where a place is expected to be, e.g., near where a relative was born.
+ * When a text matches several places, the ones within the radius are preferred, nearest first among equal scores.
+ */
+public class GeoHint {
+   private final double latitude;
+   private final double longitude;
+   private final double radiusKm;
+
+   public GeoHint(double latitude, double longitude, double radiusKm) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.radiusKm = radiusKm;
+   }
+
+   public double getLatitude() {
+      return latitude;
+   }
+
+   public double getLongitude() {
+      return longitude;
+   }
+
+   public double getRadiusKm() {
+      return radiusKm;
+   }
+
+   /**
+    * @return distance in kilometers from the hinted point, or -1 if the place has no coordinates
+    */
+   public double getDistanceKm(Place place) {
+      if (!GeoGrid.hasCoordinates(place.getLatitude(), place.getLongitude())) {
+         return -1;
+      }
+      return GeoGrid.distanceKm(latitude, longitude, place.getLatitude(), place.getLongitude());
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (!(o instanceof GeoHint)) {
+         return false;
+      }
+      GeoHint h = (GeoHint)o;
+      return Double.compare(latitude, h.latitude) == 0 && Double.compare(longitude, h.longitude) == 0 &&
+             Double.compare(radiusKm, h.radiusKm) == 0;
+   }
+
+   @Override
+   public int hashCode() {
+      long h = Double.doubleToLongBits(latitude);
+      h = 31 * h + Double.doubleToLongBits(longitude);
+      h = 31 * h + Double.doubleToLongBits(radiusKm);
+      return (int)(h ^ (h >>> 32));
+   }
+
+   public String toString() {
+      return latitude+","+longitude+" within "+radiusKm+"km";
+   }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values in log-linear buckets, like HdrHistogram:
+ * each power of two is split into 32 buckets, so percentiles are within about 3% of the recorded values.
+ * Values are recorded without locking; concurrent reads may see a recording partly applied.
+ */
+public class Histogram {
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   // values below SUB_BUCKETS get a bucket each; each higher power of two up to 2^62 gets SUB_BUCKETS buckets
+   private static final int NUM_BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      counts.incrementAndGet(getBucket(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+      }
+   }
+
+   private static int getBucket(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int)value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BUCKET_BITS;
+      return SUB_BUCKETS + shift * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+   }
+
+   // largest value that falls in the bucket
+   private static long getBucketMax(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+      long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      long bucketMax = ((mantissa + 1) << shift) - 1;
+      // the top bucket's bound overflows
+      return bucketMax >= 0 ? bucketMax : Long.MAX_VALUE;
+   }
+
+   public long getCount() {
+      return count.get();
+   }
+
+   public double getMean() {
+      long n = count.get();
+      return n > 0 ? (double)sum.get() / n : 0;
+   }
+
+   public long getMax() {
+      return max.get();
+   }
+
+   /**
+    * @param percentile 0-100
+    * @return a value at least as large as the given percentage of the recorded values; 0 if none have been recorded
+    */
+   public long getValueAtPercentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         total += counts.get(i);
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         seen += counts.get(i);
+         if (seen >= target) {
+            return Math.min(getBucketMax(i), max.get());
+         }
+      }
+      return max.get();
+   }
+
+   public void reset() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         counts.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+   }
+
+   public String toString() {
+      return "count="+getCount()+" mean="+String.format("%.1f", getMean())+" p50="+getValueAtPercentile(50)+
+              " p99="+getValueAtPercentile(99)+" max="+getMax();
+   }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints; used while building the indexes
+ */
+class IntList {
+   private int[] values;
+   private int size;
+
+   IntList() {
+      this(16);
+   }
+
+   IntList(int capacity) {
+      values = new int[Math.max(capacity, 1)];
+      size = 0;
+   }
+
+   void add(int value) {
+      if (size == values.length) {
+         values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = value;
+   }
+
+   int get(int i) {
+      return values[i];
+   }
+
+   int size() {
+      return size;
+   }
+
+   int pop() {
+      return values[--size];
+   }
+
+   boolean contains(int value) {
+      for (int i = 0; i < size; i++) {
+         if (values[i] == value) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   void clear() {
+      size = 0;
+   }
+
+   int[] toArray() {
+      return Arrays.copyOf(values, size);
+   }
+}
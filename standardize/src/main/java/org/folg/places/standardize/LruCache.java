@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded, least-recently-used cache with hit and miss counts.
+ * Safe to share between threads; keys are spread over segments with their own locks so threads rarely wait,
+ * and each segment evicts its own least-recently-used entry.
+ */
+class LruCache<K,V> {
+   private static final int MAX_SEGMENTS = 16;
+   // don't split small caches so finely that eviction stops being close to LRU
+   private static final int MIN_SEGMENT_SIZE = 256;
+
+   private static class Segment<K,V> extends LinkedHashMap<K,V> {
+      private static final long serialVersionUID = 1L;
+
+      private final int maxSize;
+      private long hits = 0;
+      private long misses = 0;
+
+      Segment(int maxSize) {
+         super(Math.min(maxSize, 1024), 0.75f, true);
+         this.maxSize = maxSize;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+         return size() > maxSize;
+      }
+   }
+
+   private final Segment<K,V>[] segments;
+
+   LruCache(int maxSize) {
+      int count = 1;
+      while (count < MAX_SEGMENTS && maxSize / (count * 2) >= MIN_SEGMENT_SIZE) {
+         count *= 2;
+      }
+      // arrays of a generic type can't be created directly
+      @SuppressWarnings("unchecked")
+      Segment<K,V>[] segments = (Segment<K,V>[])new Segment<?,?>[count];
+      this.segments = segments;
+      for (int i = 0; i < count; i++) {
+         // spread any remainder so the segments add up to maxSize
+         segments[i] = new Segment<K,V>(maxSize / count + (i < maxSize % count ? 1 : 0));
+      }
+   }
+
+   private Segment<K,V> getSegment(Object key) {
+      int h = key != null ? key.hashCode() : 0;
+      h ^= (h >>> 16);
+      return segments[h & (segments.length - 1)];
+   }
+
+   /**
+    * @return cached value, or null if not cached
+    */
+   V get(K key) {
+      Segment<K,V> segment = getSegment(key);
+      synchronized (segment) {
+         V value = segment.get(key);
+         if (value != null) {
+            segment.hits++;
+         }
+         else {
+            segment.misses++;
+         }
+         return value;
+      }
+   }
+
+   /**
+    * @return true if the key is cached; doesn't count as a hit or miss or affect eviction order
+    */
+   boolean containsKey(K key) {
+      Segment<K,V> segment = getSegment(key);
+      synchronized (segment) {
+         return segment.containsKey(key);
+      }
+   }
+
+   void put(K key, V value) {
+      Segment<K,V> segment = getSegment(key);
+      synchronized (segment) {
+         segment.put(key, value);
+      }
+   }
+
+   void clear() {
+      for (Segment<K,V> segment : segments) {
+         synchronized (segment) {
+            segment.clear();
+         }
+      }
+   }
+
+   int size() {
+      int size = 0;
+      for (Segment<K,V> segment : segments) {
+         synchronized (segment) {
+            size += segment.size();
+         }
+      }
+      return size;
+   }
+
+   long getHits() {
+      long hits = 0;
+      for (Segment<K,V> segment : segments) {
+         synchronized (segment) {
+            hits += segment.hits;
+         }
+      }
+      return hits;
+   }
+
+   long getMisses() {
+      long misses = 0;
+      for (Segment<K,V> segment : segments) {
+         synchronized (segment) {
+            misses += segment.misses;
+         }
+      }
+      return misses;
+   }
+
+   @Override
+   public String toString() {
+      long hits = getHits();
+      long misses = getMisses();
+      long lookups = hits + misses;
+      return "size="+size()+" hits="+hits+" misses="+misses+
+             " hitRate="+(lookups > 0 ? String.format("%.3f", (double)hits / lookups) : "0");
+   }
+}
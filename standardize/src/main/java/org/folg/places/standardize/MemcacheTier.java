@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import net.spy.memcached.MemcachedClient;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Shared cache between the local caches and the database.
+ * Values are strings in the same format as the database columns; writes are asynchronous,
+ * and memcache errors are logged and treated as misses so lookups fall through to the database.
+ */
+class MemcacheTier {
+   private static Logger logger = Logger.getLogger("org.folg.places.standardize");
+   private static final int MAX_KEY_LENGTH = 250;
+
+   private final MemcachedClient client;
+   private final String keyPrefix;
+   private final int expiration;
+
+   MemcacheTier(MemcachedClient client, String keyPrefix, int expiration) {
+      this.client = client;
+      this.keyPrefix = keyPrefix;
+      this.expiration = expiration;
+   }
+
+   /**
+    * @return key for the specified namespace and name, or null if the key would be too long for memcache
+    */
+   String getKey(String namespace, String name) {
+      String key = keyPrefix + namespace + name;
+      return Snapshot.encode(key).length <= MAX_KEY_LENGTH ? key : null;
+   }
+
+   /**
+    * @return values found for the specified keys
+    */
+   Map<String,String> getBulk(List<String> keys) {
+      if (keys.isEmpty()) {
+         return Collections.emptyMap();
+      }
+      try {
+         Map<String,String> result = new HashMap<String,String>();
+         for (Map.Entry<String,Object> entry : client.getBulk(keys).entrySet()) {
+            if (entry.getValue() instanceof String) {
+               result.put(entry.getKey(), (String)entry.getValue());
+            }
+         }
+         return result;
+      }
+      catch (RuntimeException e) {
+         logger.warning("Error reading from memcache: "+e.getMessage());
+         return Collections.emptyMap();
+      }
+   }
+
+   /**
+    * Write the value without waiting for memcache to respond
+    */
+   void set(String key, String value) {
+      try {
+         client.set(key, expiration, value);
+      }
+      catch (RuntimeException e) {
+         logger.warning("Error writing to memcache: "+e.getMessage());
+      }
+   }
+}
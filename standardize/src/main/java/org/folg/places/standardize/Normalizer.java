@@ -28,7 +28,15 @@ import java.util.regex.Pattern;
 public class Normalizer {
    private static Logger logger = Logger.getLogger("org.folg.places.search");
    private static Normalizer normalizer = new Normalizer();
-   private final Map<Character, String> characterReplacements;
+   // lowercased replacement for each character that has one, indexed by the character
+   private final char[][] characterReplacements;
+   // used by tokenize(String), which copies the words out before returning
+   private final ThreadLocal<TokenBuffer> tokenBuffers = new ThreadLocal<TokenBuffer>() {
+      @Override
+      protected TokenBuffer initialValue() {
+         return new TokenBuffer();
+      }
+   };
 
    public static Normalizer getInstance() {
       return normalizer;
@@ -40,15 +48,24 @@ public class Normalizer {
          Properties props = new Properties();
          props.load(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("normalizer.properties"), "UTF8"));
          // build character replacements
-         characterReplacements = new HashMap<Character, String>();
-         for (String replacement : props.getProperty("characterReplacements").split(",")) {
-            characterReplacements.put(replacement.charAt(0), replacement.substring(2));
+         String[] replacements = props.getProperty("characterReplacements").split(",");
+         int maxChar = 0;
+         for (String replacement : replacements) {
+            maxChar = Math.max(maxChar, replacement.charAt(0));
+         }
+         characterReplacements = new char[maxChar+1][];
+         for (String replacement : replacements) {
+            characterReplacements[replacement.charAt(0)] = replacement.substring(2).toLowerCase().toCharArray();
          }
       } catch (IOException e) {
          throw new RuntimeException("normalizer.properties not found");
       }
    }
 
+   private char[] getReplacement(char c) {
+      return c < characterReplacements.length ? characterReplacements[c] : null;
+   }
+
    /**
     * Tokenize name by removing diacritics, lowercasing, and splitting on non alphanumeric characters
     *
@@ -56,7 +73,19 @@ public class Normalizer {
     * @return tokenized place levels
     */
    public List<List<String>> tokenize(String text) {
-      List<List<String>> levels = new ArrayList<List<String>>();
+      TokenBuffer tokens = tokenBuffers.get();
+      tokenize(text, tokens);
+      return tokens.toLevels();
+   }
+
+   /**
+    * Tokenize name into a buffer that can be reused for the next text
+    *
+    * @param text string to tokenize
+    * @param tokens cleared and filled with the tokenized place levels
+    */
+   public void tokenize(String text, TokenBuffer tokens) {
+      tokens.clear();
 
       // find the last letter
       int lastPos = text.length()-1;
@@ -70,29 +99,19 @@ public class Normalizer {
          lastPos--;
       }
 
-      List<String> levelWords = new ArrayList<String>();
-      StringBuilder buf = new StringBuilder();
-
       // parse up to and including the last letter; anything after that is junk
       for (int i = 0; i <= lastPos; i++) {
          char c = text.charAt(i);
-         String replacement;
+         char[] replacement;
 
          if (c == ',') {
-            if (buf.length() > 0) {
-               levelWords.add(buf.toString());
-               buf.setLength(0);
-            }
-            if (levelWords.size() > 0) {
-               levels.add(levelWords);
-               levelWords = new ArrayList<String>();
-            }
-         } else if ((replacement = characterReplacements.get(c)) != null) {
-            buf.append(replacement.toLowerCase());
+            tokens.endLevel();
+         } else if ((replacement = getReplacement(c)) != null) {
+            tokens.append(replacement);
          } else if (c >= 'A' && c <= 'Z') {
-            buf.append(Character.toLowerCase(c));
+            tokens.append(Character.toLowerCase(c));
          } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
-            buf.append(c);
+            tokens.append(c);
          } else if (Character.isLetter(c)) {
             // ignore letters > U+0250; they're generally from scripts that don't map well to roman letters
             // ignore 186,170: superscript o and a used in spanish numbers: 1^a and 2^o
@@ -103,21 +122,10 @@ public class Normalizer {
          }
          // tokenize words on non-alphanumeric
          else {
-            if (buf.length() > 0) {
-               levelWords.add(buf.toString());
-               buf.setLength(0);
-            }
+            tokens.endWord();
          }
       }
-      if (buf.length() > 0) {
-         levelWords.add(buf.toString());
-      }
-
-      if (levelWords.size() > 0) {
-         levels.add(levelWords);
-      }
-
-      return levels;
+      tokens.endLevel();
    }
 
    /**
@@ -131,10 +139,10 @@ public class Normalizer {
 
       for (int i = 0; i < text.length(); i++) {
          char c = text.charAt(i);
-         String replacement;
+         char[] replacement;
 
-         if ((replacement = characterReplacements.get(c)) != null) {
-            buf.append(replacement.toLowerCase());
+         if ((replacement = getReplacement(c)) != null) {
+            buf.append(replacement);
          } else if (c >= 'A' && c <= 'Z') {
             buf.append(Character.toLowerCase(c));
          } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
@@ -36,104 +36,181 @@ public class Place {
    private double latitude = 0.0;
    private double longitude = 0.0;
    private Standardizer standardizer = null;
+   // when non-null, this place is a view over a row of the place index
+   private PlaceIndex store = null;
+   private int row = 0;
+
+   public Place() {
+   }
+
+   Place(PlaceIndex store, int row, Standardizer standardizer) {
+      this.store = store;
+      this.row = row;
+      this.standardizer = standardizer;
+   }
 
    public int getId() {
-      return id;
+      return store != null ? store.getId(row) : id;
    }
 
    public void setId(int id) {
+      detach();
       this.id = id;
    }
 
    public String getName() {
-      return name;
+      return store != null ? store.getName(row) : name;
    }
 
    public void setName(String name) {
+      detach();
       this.name = name;
    }
 
    public String[] getAltNames() {
-      return altNames;
+      return store != null ? store.getAltNames(row) : altNames;
    }
 
    public void setAltNames(String[] altNames) {
+      detach();
       this.altNames = altNames;
    }
 
    public String[] getTypes() {
-      return types;
+      return store != null ? store.getTypes(row) : types;
    }
 
    public void setTypes(String[] types) {
+      detach();
       this.types = types;
    }
 
    public int getLocatedInId() {
-      return locatedInId;
+      return store != null ? store.getLocatedInId(row) : locatedInId;
    }
 
    public void setLocatedInId(int locatedInId) {
+      detach();
       this.locatedInId = locatedInId;
    }
 
    public int[] getAlsoLocatedInIds() {
-      return alsoLocatedInIds;
+      return store != null ? store.getAlsoLocatedInIds(row) : alsoLocatedInIds;
    }
 
    public void setAlsoLocatedInIds(int[] alsoLocatedInIds) {
+      detach();
       this.alsoLocatedInIds = alsoLocatedInIds;
    }
 
    public int getLevel() {
-      return level;
+      return store != null ? store.getLevel(row) : level;
    }
 
    public void setLevel(int level) {
+      detach();
       this.level = level;
    }
 
    public int getCountry() {
-      return country;
+      return store != null ? store.getCountry(row) : country;
    }
 
    public void setCountry(int country) {
+      detach();
       this.country = country;
    }
 
    public double getLatitude() {
-      return latitude;
+      return store != null ? store.getLatitude(row) : latitude;
    }
 
    public void setLatitude(double latitude) {
+      detach();
       this.latitude = latitude;
    }
 
    public double getLongitude() {
-      return longitude;
+      return store != null ? store.getLongitude(row) : longitude;
    }
 
    public void setLongitude(double longitude) {
+      detach();
       this.longitude = longitude;
    }
 
+   // copy the fields out of the place store so they can be modified
+   private void detach() {
+      if (store != null) {
+         id = store.getId(row);
+         name = store.getName(row);
+         altNames = store.getAltNames(row);
+         types = store.getTypes(row);
+         locatedInId = store.getLocatedInId(row);
+         alsoLocatedInIds = store.getAlsoLocatedInIds(row);
+         level = store.getLevel(row);
+         country = store.getCountry(row);
+         latitude = store.getLatitude(row);
+         longitude = store.getLongitude(row);
+         store = null;
+      }
+   }
+
+   /**
+    * @return a place with the same fields that can be modified independently of this one
+    */
+   Place copy() {
+      if (store != null) {
+         return new Place(store, row, standardizer);
+      }
+      Place p = new Place();
+      p.id = id;
+      p.name = name;
+      p.altNames = altNames != null ? altNames.clone() : null;
+      p.types = types != null ? types.clone() : null;
+      p.locatedInId = locatedInId;
+      p.alsoLocatedInIds = alsoLocatedInIds != null ? alsoLocatedInIds.clone() : null;
+      p.level = level;
+      p.country = country;
+      p.latitude = latitude;
+      p.longitude = longitude;
+      p.standardizer = standardizer;
+      return p;
+   }
+
    void setStandardizer(Standardizer standardizer) {
       this.standardizer = standardizer;
    }
 
    @XmlElement
    public String getFullName() {
+      if (store != null) {
+         // full names are built and shared by the place index
+         return store.getFullName(row);
+      }
       StringBuilder buf = new StringBuilder();
       if (standardizer != null) {
          buf.append(getName());
-         int locatedIn = getLocatedInId();
-         while (locatedIn > 0) {
-            Place p = standardizer.getPlace(locatedIn);
+         if (getLocatedInId() > 0) {
             buf.append(", ");
-            buf.append(p.getName());
-            locatedIn = p.getLocatedInId();
+            buf.append(standardizer.getPlace(getLocatedInId()).getFullName());
          }
       }
       return buf.toString();
    }
+
+   /**
+    * @return full names of the also-located-in places, or null if there aren't any
+    */
+   public String[] getAlsoLocatedInFullNames() {
+      int[] alsoLocatedInIds = getAlsoLocatedInIds();
+      if (alsoLocatedInIds == null || alsoLocatedInIds.length == 0 || standardizer == null) {
+         return null;
+      }
+      String[] fullNames = new String[alsoLocatedInIds.length];
+      for (int i = 0; i < alsoLocatedInIds.length; i++) {
+         fullNames[i] = standardizer.getPlace(alsoLocatedInIds[i]).getFullName();
+      }
+      return fullNames;
+   }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+/**
+ * Place fields by row, so the matching code can read places without creating Place objects.
+ * A row is a handle returned by getRow; it is only meaningful to the index that returned it.
+ */
+interface PlaceIndex {
+   /**
+    * @return row for the specified place id, or -1 if not found
+    */
+   public int getRow(int id);
+
+   /**
+    * Hint that the places are about to be read, so indexes that read from elsewhere can read them together
+    */
+   public void prefetch(int[] ids);
+
+   public int getId(int row);
+
+   public String getName(int row);
+
+   /**
+    * @return the place's name followed by the names of the places it's located in, separated by commas
+    */
+   public String getFullName(int row);
+
+   public String[] getAltNames(int row);
+
+   public String[] getTypes(int row);
+
+   /**
+    * @param token normalized text
+    * @return true if the place's normalized name contains the token
+    */
+   public boolean nameContains(int row, String token);
+
+   /**
+    * @param token normalized text
+    * @return true if any of the place's normalized types contains the token
+    */
+   public boolean typeContains(int row, String token);
+
+   public int getLocatedInId(int row);
+
+   public int[] getAlsoLocatedInIds(int row);
+
+   /**
+    * @param ids place ids in ascending order
+    * @return true if any of the ids is an ancestor of the place at the specified row
+    */
+   public boolean hasAncestorIn(int row, int[] ids);
+
+   public int getLevel(int row);
+
+   public int getCountry(int row);
+
+   public double getLatitude(int row);
+
+   public double getLongitude(int row);
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented storage for the place index.
+ *
+ * Each place is a row; its fields are stored in int columns indexed by row.
+ * Names are references into a shared string pool, along with each place's normalized name,
+ * so matching doesn't normalize names again for every query; types are ids in a TypeTable.
+ * Multi-valued fields (alt names, types, also-located-in ids) are packed into a single column
+ * with an offsets column: the values for row r are at [offsets[r], offsets[r+1]).
+ *
+ * Each place's located-in place is also stored as a row, so full names are built without looking up ids.
+ * The full names of places that contain other places are kept once they're built;
+ * a place's full name is its name followed by its parent's kept full name, so places share their common suffixes.
+ *
+ * The store also holds the ancestor closure of each place: the sorted ids of every place reachable
+ * through located-in and also-located-in links, so subplace checks are a set intersection
+ * instead of a recursive walk.
+ *
+ * Columns are IntBuffers so the same code serves a store on the heap (wrapped int[]s)
+ * and a store read in place from a memory-mapped snapshot, where the pool is decoded on demand.
+ */
+class PlaceStore implements PlaceIndex {
+   private static final double COORDINATE_SCALE = 1000000.0;
+   private static final int NO_ROW = -1;
+
+   private final int size;
+   private final IntBuffer ids;
+   private final IntBuffer locatedInIds;
+   private final IntBuffer levels;
+   private final IntBuffer countries;
+   // fixed-point coordinates in millionths of a degree (places table stores 6 decimal places)
+   private final IntBuffer latitudes;
+   private final IntBuffer longitudes;
+   private final IntBuffer names;
+   private final IntBuffer normalizedNames;
+   private final IntBuffer altNameOffsets;
+   private final IntBuffer altNames;
+   private final IntBuffer typeOffsets;
+   private final IntBuffer types;
+   private final TypeTable typeTable;
+   private final IntBuffer alsoLocatedInOffsets;
+   private final IntBuffer alsoLocatedInIds;
+   // heap stores decode the pool up front; mapped stores decode from the pool bytes
+   private final String[] pool;
+   private final IntBuffer poolOffsets;
+   private final ByteBuffer poolBytes;
+   private final IntBuffer ancestorOffsets;
+   private final IntBuffer ancestors;
+   // id -> row; dense when ids are reasonably compact, otherwise sorted ids with their rows
+   private final IntBuffer rowById;
+   private final IntBuffer sortedIds;
+   private final IntBuffer sortedRows;
+   // row of each place's located-in place, or NO_ROW
+   private final IntBuffer parentRows;
+   // full names of parents, filled in as they're needed; strings are immutable, so threads can share this without locking
+   private final String[] parentFullNames;
+
+   private PlaceStore(Builder b) {
+      size = b.ids.size();
+      int[] ids = b.ids.toArray();
+      int[] locatedInIds = b.locatedInIds.toArray();
+      int[] alsoLocatedInOffsets = b.alsoLocatedInOffsets.toArray();
+      int[] alsoLocatedInIds = b.alsoLocatedInIds.toArray();
+      this.ids = IntBuffer.wrap(ids);
+      this.locatedInIds = IntBuffer.wrap(locatedInIds);
+      levels = IntBuffer.wrap(b.levels.toArray());
+      countries = IntBuffer.wrap(b.countries.toArray());
+      latitudes = IntBuffer.wrap(b.latitudes.toArray());
+      longitudes = IntBuffer.wrap(b.longitudes.toArray());
+      names = IntBuffer.wrap(b.names.toArray());
+      normalizedNames = IntBuffer.wrap(b.normalizedNames.toArray());
+      altNameOffsets = IntBuffer.wrap(b.altNameOffsets.toArray());
+      altNames = IntBuffer.wrap(b.altNames.toArray());
+      typeOffsets = IntBuffer.wrap(b.typeOffsets.toArray());
+      types = IntBuffer.wrap(b.types.toArray());
+      typeTable = b.typeTable;
+      this.alsoLocatedInOffsets = IntBuffer.wrap(alsoLocatedInOffsets);
+      this.alsoLocatedInIds = IntBuffer.wrap(alsoLocatedInIds);
+      pool = b.pool.toArray(new String[b.pool.size()]);
+      poolOffsets = null;
+      poolBytes = null;
+
+      int maxId = 0;
+      for (int id : ids) {
+         maxId = Math.max(maxId, id);
+      }
+      if (maxId <= 16 * size + 1024) {
+         int[] rows = new int[maxId + 1];
+         Arrays.fill(rows, NO_ROW);
+         for (int row = 0; row < size; row++) {
+            rows[ids[row]] = row;
+         }
+         rowById = IntBuffer.wrap(rows);
+         sortedIds = null;
+         sortedRows = null;
+      }
+      else {
+         rowById = null;
+         long[] pairs = new long[size];
+         for (int row = 0; row < size; row++) {
+            pairs[row] = ((long)ids[row] << 32) | row;
+         }
+         Arrays.sort(pairs);
+         int[] sorted = new int[size];
+         int[] rows = new int[size];
+         for (int i = 0; i < size; i++) {
+            sorted[i] = (int)(pairs[i] >>> 32);
+            rows[i] = (int)pairs[i];
+         }
+         sortedIds = IntBuffer.wrap(sorted);
+         sortedRows = IntBuffer.wrap(rows);
+      }
+
+      int[] parents = new int[size];
+      for (int row = 0; row < size; row++) {
+         parents[row] = locatedInIds[row] > 0 ? getRow(locatedInIds[row]) : NO_ROW;
+      }
+      parentRows = IntBuffer.wrap(parents);
+      parentFullNames = new String[size];
+
+      IntList closure = new IntList(size * 4);
+      int[] offsets = new int[size + 1];
+      int[] visitedBy = new int[size];
+      Arrays.fill(visitedBy, NO_ROW);
+      IntList found = new IntList();
+      IntList stack = new IntList();
+      for (int row = 0; row < size; row++) {
+         found.clear();
+         stack.clear();
+         // a cycle in the located-in data mustn't make a place its own ancestor
+         visitedBy[row] = row;
+         stack.add(row);
+         while (stack.size() > 0) {
+            int r = stack.pop();
+            if (locatedInIds[r] > 0) {
+               addAncestor(locatedInIds[r], row, visitedBy, found, stack);
+            }
+            for (int i = alsoLocatedInOffsets[r]; i < alsoLocatedInOffsets[r+1]; i++) {
+               addAncestor(alsoLocatedInIds[i], row, visitedBy, found, stack);
+            }
+         }
+         int[] sorted = found.toArray();
+         Arrays.sort(sorted);
+         for (int id : sorted) {
+            closure.add(id);
+         }
+         offsets[row+1] = closure.size();
+      }
+      ancestorOffsets = IntBuffer.wrap(offsets);
+      ancestors = IntBuffer.wrap(closure.toArray());
+   }
+
+   /**
+    * Parse places.csv: id|name|alt names|types|located-in id|also-located-in ids|level|country|latitude|longitude
+    */
+   static PlaceStore parse(Reader reader) throws IOException {
+      PlaceStore.Builder builder = new PlaceStore.Builder();
+      BufferedReader r = new BufferedReader(reader);
+      String line;
+      while ((line = r.readLine()) != null) {
+         String[] fields = line.split("\\|");
+         int[] alsoLocatedInIds = null;
+         if (fields[5].length() > 0) {
+            String[] idStrings = fields[5].split(",");
+            alsoLocatedInIds = new int[idStrings.length];
+            for (int i = 0; i < idStrings.length; i++) {
+               alsoLocatedInIds[i] = Integer.parseInt(idStrings[i]);
+            }
+         }
+         builder.add(Integer.parseInt(fields[0]),
+                     fields[1],
+                     fields[2].length() > 0 ? fields[2].split(",") : null,
+                     fields[3].length() > 0 ? fields[3].split(",") : null,
+                     Integer.parseInt(fields[4]),
+                     alsoLocatedInIds,
+                     Integer.parseInt(fields[6]),
+                     Integer.parseInt(fields[7]),
+                     fields.length > 8 && fields[8].length() > 0 ? Double.parseDouble(fields[8]) : 0.0,
+                     fields.length > 9 && fields[9].length() > 0 ? Double.parseDouble(fields[9]) : 0.0);
+      }
+      return builder.build();
+   }
+
+   // read a store written by write(); the id lookup and ancestor closure are read rather than recomputed
+   // if mapped, the columns are views over the buffer rather than copies
+   private PlaceStore(ByteBuffer buf, boolean mapped) throws IOException {
+      ids = Snapshot.readInts(buf, mapped);
+      size = ids.limit();
+      locatedInIds = Snapshot.readInts(buf, mapped);
+      levels = Snapshot.readInts(buf, mapped);
+      countries = Snapshot.readInts(buf, mapped);
+      latitudes = Snapshot.readInts(buf, mapped);
+      longitudes = Snapshot.readInts(buf, mapped);
+      names = Snapshot.readInts(buf, mapped);
+      normalizedNames = Snapshot.readInts(buf, mapped);
+      altNameOffsets = Snapshot.readInts(buf, mapped);
+      altNames = Snapshot.readInts(buf, mapped);
+      typeOffsets = Snapshot.readInts(buf, mapped);
+      types = Snapshot.readInts(buf, mapped);
+      alsoLocatedInOffsets = Snapshot.readInts(buf, mapped);
+      alsoLocatedInIds = Snapshot.readInts(buf, mapped);
+      // the type table is small, so it's always read onto the heap
+      typeTable = new TypeTable();
+      IntBuffer offsets = Snapshot.readInts(buf, true);
+      ByteBuffer bytes = Snapshot.readBytes(buf);
+      for (int i = 0; i < offsets.limit() - 1; i++) {
+         typeTable.getTypeId(Snapshot.decode(bytes, offsets.get(i), offsets.get(i+1)));
+      }
+      offsets = Snapshot.readInts(buf, true);
+      bytes = Snapshot.readBytes(buf);
+      if (mapped) {
+         pool = null;
+         poolOffsets = offsets;
+         poolBytes = bytes;
+      }
+      else {
+         pool = new String[offsets.limit() - 1];
+         for (int i = 0; i < pool.length; i++) {
+            pool[i] = Snapshot.decode(bytes, offsets.get(i), offsets.get(i+1));
+         }
+         poolOffsets = null;
+         poolBytes = null;
+      }
+      ancestorOffsets = Snapshot.readInts(buf, mapped);
+      ancestors = Snapshot.readInts(buf, mapped);
+      if (buf.get() != 0) {
+         rowById = Snapshot.readInts(buf, mapped);
+         sortedIds = null;
+         sortedRows = null;
+      }
+      else {
+         rowById = null;
+         sortedIds = Snapshot.readInts(buf, mapped);
+         sortedRows = Snapshot.readInts(buf, mapped);
+      }
+      parentRows = Snapshot.readInts(buf, mapped);
+      parentFullNames = new String[size];
+   }
+
+   /**
+    * Read a store from a snapshot
+    * @param mapped if true, serve the store directly from the buffer instead of copying it onto the heap
+    */
+   static PlaceStore read(ByteBuffer buf, boolean mapped) throws IOException {
+      return new PlaceStore(buf, mapped);
+   }
+
+   void write(DataOutputStream out) throws IOException {
+      Snapshot.writeInts(out, ids);
+      Snapshot.writeInts(out, locatedInIds);
+      Snapshot.writeInts(out, levels);
+      Snapshot.writeInts(out, countries);
+      Snapshot.writeInts(out, latitudes);
+      Snapshot.writeInts(out, longitudes);
+      Snapshot.writeInts(out, names);
+      Snapshot.writeInts(out, normalizedNames);
+      Snapshot.writeInts(out, altNameOffsets);
+      Snapshot.writeInts(out, altNames);
+      Snapshot.writeInts(out, typeOffsets);
+      Snapshot.writeInts(out, types);
+      Snapshot.writeInts(out, alsoLocatedInOffsets);
+      Snapshot.writeInts(out, alsoLocatedInIds);
+      String[] typeStrings = new String[typeTable.size()];
+      for (int i = 0; i < typeStrings.length; i++) {
+         typeStrings[i] = typeTable.getType(i);
+      }
+      Snapshot.writeStrings(out, typeStrings);
+      Snapshot.writeStrings(out, pool);
+      Snapshot.writeInts(out, ancestorOffsets);
+      Snapshot.writeInts(out, ancestors);
+      if (rowById != null) {
+         out.writeByte(1);
+         Snapshot.writeInts(out, rowById);
+      }
+      else {
+         out.writeByte(0);
+         Snapshot.writeInts(out, sortedIds);
+         Snapshot.writeInts(out, sortedRows);
+      }
+      Snapshot.writeInts(out, parentRows);
+   }
+
+   // ancestors that aren't in the store are recorded but can't be followed further
+   private void addAncestor(int id, int row, int[] visitedBy, IntList found, IntList stack) {
+      int r = getRow(id);
+      if (r >= 0) {
+         if (visitedBy[r] != row) {
+            visitedBy[r] = row;
+            found.add(id);
+            stack.add(r);
+         }
+      }
+      else if (!found.contains(id)) {
+         found.add(id);
+      }
+   }
+
+   int size() {
+      return size;
+   }
+
+   @Override
+   public int getRow(int id) {
+      if (rowById != null) {
+         return id >= 0 && id < rowById.limit() ? rowById.get(id) : NO_ROW;
+      }
+      int lo = 0;
+      int hi = size - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int midId = sortedIds.get(mid);
+         if (midId < id) {
+            lo = mid + 1;
+         }
+         else if (midId > id) {
+            hi = mid - 1;
+         }
+         else {
+            return sortedRows.get(mid);
+         }
+      }
+      return NO_ROW;
+   }
+
+   @Override
+   public void prefetch(int[] ids) {
+      // already in memory
+   }
+
+   @Override
+   public int getId(int row) {
+      return ids.get(row);
+   }
+
+   @Override
+   public String getName(int row) {
+      return getString(names.get(row));
+   }
+
+   @Override
+   public String getFullName(int row) {
+      int parent = parentRows.get(row);
+      return parent != NO_ROW ? getName(row) + ", " + getParentFullName(parent) : getName(row);
+   }
+
+   private String getParentFullName(int row) {
+      String fullName = parentFullNames[row];
+      if (fullName == null) {
+         fullName = getFullName(row);
+         parentFullNames[row] = fullName;
+      }
+      return fullName;
+   }
+
+   @Override
+   public String[] getAltNames(int row) {
+      return getStrings(altNameOffsets, altNames, row);
+   }
+
+   @Override
+   public String[] getTypes(int row) {
+      int start = typeOffsets.get(row);
+      int end = typeOffsets.get(row+1);
+      if (start == end) {
+         return null;
+      }
+      String[] result = new String[end - start];
+      for (int i = start; i < end; i++) {
+         result[i - start] = typeTable.getType(types.get(i));
+      }
+      return result;
+   }
+
+   @Override
+   public boolean nameContains(int row, String token) {
+      int ref = normalizedNames.get(row);
+      if (pool != null) {
+         return pool[ref].indexOf(token) >= 0;
+      }
+      // UTF-8 is self-synchronizing, so the encoded token occurs in the encoded name exactly when the token does
+      return indexOf(poolBytes, poolOffsets.get(ref), poolOffsets.get(ref+1), Snapshot.encode(token)) >= 0;
+   }
+
+   @Override
+   public boolean typeContains(int row, String token) {
+      int end = typeOffsets.get(row+1);
+      for (int i = typeOffsets.get(row); i < end; i++) {
+         if (typeTable.matches(types.get(i), token)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static int indexOf(ByteBuffer bytes, int start, int end, byte[] key) {
+      for (int i = start; i <= end - key.length; i++) {
+         int j = 0;
+         while (j < key.length && bytes.get(i + j) == key[j]) {
+            j++;
+         }
+         if (j == key.length) {
+            return i - start;
+         }
+      }
+      return -1;
+   }
+
+   @Override
+   public int getLocatedInId(int row) {
+      return locatedInIds.get(row);
+   }
+
+   @Override
+   public int[] getAlsoLocatedInIds(int row) {
+      int start = alsoLocatedInOffsets.get(row);
+      int end = alsoLocatedInOffsets.get(row+1);
+      if (start == end) {
+         return null;
+      }
+      int[] result = new int[end - start];
+      for (int i = start; i < end; i++) {
+         result[i - start] = alsoLocatedInIds.get(i);
+      }
+      return result;
+   }
+
+   int getAlsoLocatedInCount(int row) {
+      return alsoLocatedInOffsets.get(row+1) - alsoLocatedInOffsets.get(row);
+   }
+
+   int getAlsoLocatedInId(int row, int i) {
+      return alsoLocatedInIds.get(alsoLocatedInOffsets.get(row) + i);
+   }
+
+   @Override
+   public boolean hasAncestorIn(int row, int[] ids) {
+      int end = ancestorOffsets.get(row+1);
+      for (int i = ancestorOffsets.get(row); i < end; i++) {
+         if (Arrays.binarySearch(ids, ancestors.get(i)) >= 0) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public int getLevel(int row) {
+      return levels.get(row);
+   }
+
+   @Override
+   public int getCountry(int row) {
+      return countries.get(row);
+   }
+
+   @Override
+   public double getLatitude(int row) {
+      return latitudes.get(row) / COORDINATE_SCALE;
+   }
+
+   @Override
+   public double getLongitude(int row) {
+      return longitudes.get(row) / COORDINATE_SCALE;
+   }
+
+   private String getString(int ref) {
+      if (pool != null) {
+         return pool[ref];
+      }
+      return Snapshot.decode(poolBytes, poolOffsets.get(ref), poolOffsets.get(ref+1));
+   }
+
+   private String[] getStrings(IntBuffer offsets, IntBuffer refs, int row) {
+      int start = offsets.get(row);
+      int end = offsets.get(row+1);
+      if (start == end) {
+         return null;
+      }
+      String[] result = new String[end - start];
+      for (int i = start; i < end; i++) {
+         result[i - start] = getString(refs.get(i));
+      }
+      return result;
+   }
+
+   /**
+    * Accumulates places one at a time, then builds the compact store
+    */
+   static class Builder {
+      private final IntList ids = new IntList(1024);
+      private final IntList locatedInIds = new IntList(1024);
+      private final IntList levels = new IntList(1024);
+      private final IntList countries = new IntList(1024);
+      private final IntList latitudes = new IntList(1024);
+      private final IntList longitudes = new IntList(1024);
+      private final IntList names = new IntList(1024);
+      private final IntList normalizedNames = new IntList(1024);
+      private final IntList altNameOffsets = new IntList(1024);
+      private final IntList altNames = new IntList(1024);
+      private final IntList typeOffsets = new IntList(1024);
+      private final IntList types = new IntList(1024);
+      private final TypeTable typeTable = new TypeTable();
+      private final Normalizer normalizer = Normalizer.getInstance();
+      private final IntList alsoLocatedInOffsets = new IntList(1024);
+      private final IntList alsoLocatedInIds = new IntList(1024);
+      private final List<String> pool = new ArrayList<String>();
+      private final Map<String,Integer> poolIndex = new HashMap<String,Integer>();
+
+      Builder() {
+         altNameOffsets.add(0);
+         typeOffsets.add(0);
+         alsoLocatedInOffsets.add(0);
+      }
+
+      void add(int id, String name, String[] altNames, String[] types, int locatedInId, int[] alsoLocatedInIds,
+               int level, int country, double latitude, double longitude) {
+         ids.add(id);
+         names.add(intern(name));
+         normalizedNames.add(intern(normalizer.normalize(name)));
+         if (altNames != null) {
+            for (String altName : altNames) {
+               this.altNames.add(intern(altName));
+            }
+         }
+         altNameOffsets.add(this.altNames.size());
+         if (types != null) {
+            for (String type : types) {
+               this.types.add(typeTable.getTypeId(type));
+            }
+         }
+         typeOffsets.add(this.types.size());
+         locatedInIds.add(locatedInId);
+         if (alsoLocatedInIds != null) {
+            for (int alii : alsoLocatedInIds) {
+               this.alsoLocatedInIds.add(alii);
+            }
+         }
+         alsoLocatedInOffsets.add(this.alsoLocatedInIds.size());
+         levels.add(level);
+         countries.add(country);
+         latitudes.add((int)Math.round(latitude * COORDINATE_SCALE));
+         longitudes.add((int)Math.round(longitude * COORDINATE_SCALE));
+      }
+
+      private int intern(String s) {
+         Integer ref = poolIndex.get(s);
+         if (ref == null) {
+            ref = pool.size();
+            pool.add(s);
+            poolIndex.put(s, ref);
+         }
+         return ref;
+      }
+
+      PlaceStore build() {
+         return new PlaceStore(this);
+      }
+   }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.folg.places.standardize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Level weights by country and popularity priors by place, used to score candidate matches.
+ * Both are looked up by id in open-addressing tables of primitives, so scoring a candidate doesn't box or allocate.
+ *
+ * A model is built either from the hand-set country buckets in standardizer.properties,
+ * or from a file written by the TrainScoring tool, one entry per line:
+ *   level|w1,w2,w3,w4        weights for countries that aren't listed
+ *   country|id|w1,w2,w3,w4   weights for places in that country, by level
+ *   place|id|prior           added to the score of that place
+ */
+class ScoringModel {
+   // MAX_LEVELS weights per row, starting at row 0 for countries that aren't listed
+   private final double[] levelWeights;
+   private final IdTable countryRows;
+   // priors[0] is unused so a missing place maps to 0
+   private final float[] placePriors;
+   private final IdTable placeRows;
+
+   private ScoringModel(double[] levelWeights, IdTable countryRows, float[] placePriors, IdTable placeRows) {
+      this.levelWeights = levelWeights;
+      this.countryRows = countryRows;
+      this.placePriors = placePriors;
+      this.placeRows = placeRows;
+   }
+
+   double getLevelWeight(int countryId, int level) {
+      int levels = Standardizer.MAX_LEVELS;
+      return levelWeights[countryRows.get(countryId) * levels + Math.min(levels, level) - 1];
+   }
+
+   double getPlacePrior(int placeId) {
+      return placePriors[placeRows.get(placeId)];
+   }
+
+   int getPlaceCount() {
+      return placeRows.size();
+   }
+
+   /**
+    * Build a model from the country buckets in standardizer.properties; countries in both buckets are taken to be large
+    */
+   static ScoringModel fromBuckets(double[] smallWeights, int[] mediumCountries, double[] mediumWeights,
+                                   int[] largeCountries, double[] largeWeights) {
+      double[] levelWeights = new double[3 * Standardizer.MAX_LEVELS];
+      copyWeights(smallWeights, levelWeights, 0);
+      copyWeights(mediumWeights, levelWeights, 1);
+      copyWeights(largeWeights, levelWeights, 2);
+      IdTable countryRows = new IdTable(mediumCountries.length + largeCountries.length);
+      for (int id : mediumCountries) {
+         countryRows.put(id, 1);
+      }
+      for (int id : largeCountries) {
+         countryRows.put(id, 2);
+      }
+      return new ScoringModel(levelWeights, countryRows, new float[1], new IdTable(0));
+   }
+
+   /**
+    * Parse a model file written by TrainScoring
+    */
+   static ScoringModel parse(Reader reader) throws IOException {
+      BufferedReader r = new BufferedReader(reader);
+      double[] defaultWeights = null;
+      IntList countryIds = new IntList();
+      DoubleList weights = new DoubleList();
+      IntList placeIds = new IntList();
+      DoubleList priors = new DoubleList();
+      String line;
+      while ((line = r.readLine()) != null) {
+         if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+         }
+         String[] fields = line.split("\\|");
+         if (fields[0].equals("level") && fields.length == 2) {
+            defaultWeights = parseWeights(fields[1]);
+         }
+         else if (fields[0].equals("country") && fields.length == 3) {
+            countryIds.add(Integer.parseInt(fields[1]));
+            for (double w : parseWeights(fields[2])) {
+               weights.add(w);
+            }
+         }
+         else if (fields[0].equals("place") && fields.length == 3) {
+            placeIds.add(Integer.parseInt(fields[1]));
+            priors.add(Double.parseDouble(fields[2]));
+         }
+         else {
+            throw new IOException("Invalid scoring model line: "+line);
+         }
+      }
+      if (defaultWeights == null) {
+         throw new IOException("Scoring model is missing level weights");
+      }
+
+      double[] levelWeights = new double[(countryIds.size() + 1) * Standardizer.MAX_LEVELS];
+      System.arraycopy(defaultWeights, 0, levelWeights, 0, Standardizer.MAX_LEVELS);
+      IdTable countryRows = new IdTable(countryIds.size());
+      for (int i = 0; i < countryIds.size(); i++) {
+         for (int j = 0; j < Standardizer.MAX_LEVELS; j++) {
+            levelWeights[(i + 1) * Standardizer.MAX_LEVELS + j] = weights.get(i * Standardizer.MAX_LEVELS + j);
+         }
+         countryRows.put(countryIds.get(i), i + 1);
+      }
+      float[] placePriors = new float[placeIds.size() + 1];
+      IdTable placeRows = new IdTable(placeIds.size());
+      for (int i = 0; i < placeIds.size(); i++) {
+         placePriors[i + 1] = (float)priors.get(i);
+         placeRows.put(placeIds.get(i), i + 1);
+      }
+      return new ScoringModel(levelWeights, countryRows, placePriors, placeRows);
+   }
+
+   private static double[] parseWeights(String value) throws IOException {
+      String[] fields = value.split(",");
+      if (fields.length != Standardizer.MAX_LEVELS) {
+         throw new IOException("Expected "+Standardizer.MAX_LEVELS+" level weights: "+value);
+      }
+      double[] result = new double[Standardizer.MAX_LEVELS];
+      for (int i = 0; i < Standardizer.MAX_LEVELS; i++) {
+         result[i] = Double.parseDouble(fields[i]);
+      }
+      return result;
+   }
+
+   private static void copyWeights(double[] weights, double[] levelWeights, int row) {
+      if (weights.length != Standardizer.MAX_LEVELS) {
+         throw new IllegalArgumentException("Expected "+Standardizer.MAX_LEVELS+" level weights");
+      }
+      System.arraycopy(weights, 0, levelWeights, row * Standardizer.MAX_LEVELS, Standardizer.MAX_LEVELS);
+   }
+
+   private static class DoubleList {
+      private double[] values = new double[16];
+      private int size = 0;
+
+      void add(double value) {
+         if (size == values.length) {
+            double[] grown = new double[size * 2];
+            System.arraycopy(values, 0, grown, 0, size);
+            values = grown;
+         }
+         values[size++] = value;
+      }
+
+      double get(int i) {
+         return values[i];
+      }
+   }
+
+   /**
+    * Map from positive ids to positive values; linear probing over a power-of-two table kept at most half full.
+    * Missing ids (and id 0) map to 0.
+    */
+   private static class IdTable {
+      private final int[] keys;
+      private final int[] values;
+      private final int mask;
+      private final int shift;
+      private int size = 0;
+
+      IdTable(int expectedSize) {
+         int bits = 1;
+         while ((1 << bits) < expectedSize * 2) {
+            bits++;
+         }
+         keys = new int[1 << bits];
+         values = new int[1 << bits];
+         mask = (1 << bits) - 1;
+         shift = 32 - bits;
+      }
+
+      private int slot(int id) {
+         // multiplicative hashing; the high bits of the product are the best mixed
+         int slot = (id * 0x9E3779B9) >>> shift;
+         while (keys[slot] != 0 && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+         }
+         return slot;
+      }
+
+      void put(int id, int value) {
+         if (id <= 0) {
+            throw new IllegalArgumentException("Invalid id: "+id);
+         }
+         int slot = slot(id);
+         if (keys[slot] == 0) {
+            if (size * 2 >= keys.length) {
+               throw new IllegalStateException("Id table is full");
+            }
+            keys[slot] = id;
+            size++;
+         }
+         values[slot] = value;
+      }
+
+      int get(int id) {
+         return values[slot(id)];
+      }
+
+      int size() {
+         return size;
+      }
+   }
+}
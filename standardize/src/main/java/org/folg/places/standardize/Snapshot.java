@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary snapshot of standardizer.properties, the word index and the place index,
+ * so the Standardizer can start without parsing the csv files.
+ *
+ * Layout (big-endian): magic, format version, properties text, word index, place store.
+ * Int and char arrays are written as a length followed by the values, so they can be bulk-copied on load
+ * or used in place when the snapshot is memory-mapped.
+ * A string table is an offsets array followed by a block of UTF-8 bytes; string i is at [offsets[i], offsets[i+1]).
+ */
+public class Snapshot {
+   public static final String RESOURCE_NAME = "places.snapshot";
+   public static final String FILE_PROPERTY = "places.snapshot.file";
+
+   private static final int MAGIC = 0x504c5353; // "PLSS"
+   private static final int VERSION = 5;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final String properties;
+   private final WordIndex wordIndex;
+   private final PlaceStore placeStore;
+
+   private Snapshot(String properties, WordIndex wordIndex, PlaceStore placeStore) {
+      this.properties = properties;
+      this.wordIndex = wordIndex;
+      this.placeStore = placeStore;
+   }
+
+   String getProperties() {
+      return properties;
+   }
+
+   WordIndex getWordIndex() {
+      return wordIndex;
+   }
+
+   PlaceStore getPlaceStore() {
+      return placeStore;
+   }
+
+   /**
+    * Compile the properties, word index and place index into a snapshot
+    * @param propertiesReader standardizer.properties
+    * @param wordIndexReader place_words.csv
+    * @param placeIndexReader places.csv
+    * @param out snapshot destination; not closed by this method
+    */
+   public static void write(Reader propertiesReader, Reader wordIndexReader, Reader placeIndexReader, OutputStream out)
+           throws IOException {
+      StringBuilder properties = new StringBuilder();
+      char[] buf = new char[8192];
+      int len;
+      while ((len = propertiesReader.read(buf)) > 0) {
+         properties.append(buf, 0, len);
+      }
+      TrieWordIndex wordIndex = TrieWordIndex.parse(wordIndexReader);
+      PlaceStore placeStore = PlaceStore.parse(placeIndexReader);
+
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 65536));
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      writeString(dos, properties.toString());
+      wordIndex.write(dos);
+      placeStore.write(dos);
+      dos.flush();
+   }
+
+   /**
+    * Read a snapshot
+    * @param mapped if true, serve the indexes directly from the buffer instead of copying them onto the heap;
+    * the buffer must not be modified afterward
+    */
+   static Snapshot read(ByteBuffer buf, boolean mapped) throws IOException {
+      if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+         throw new IOException("Not a place snapshot");
+      }
+      int version = buf.getInt();
+      if (version != VERSION) {
+         throw new IOException("Unsupported place snapshot version: "+version);
+      }
+      String properties = readString(buf);
+      WordIndex wordIndex = TrieWordIndex.read(buf, mapped);
+      PlaceStore placeStore = PlaceStore.read(buf, mapped);
+      return new Snapshot(properties, wordIndex, placeStore);
+   }
+
+   /**
+    * Map a snapshot file into memory
+    */
+   static ByteBuffer map(File file) throws IOException {
+      FileInputStream in = new FileInputStream(file);
+      try {
+         FileChannel channel = in.getChannel();
+         // the mapping remains valid after the channel is closed
+         return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Map the snapshot if it's a file; otherwise (e.g., inside a jar) read it onto the heap
+    */
+   static ByteBuffer open(URL url) throws IOException {
+      if ("file".equals(url.getProtocol())) {
+         try {
+            return map(new File(url.toURI()));
+         } catch (URISyntaxException e) {
+            // fall through and read it as a stream
+         }
+      }
+      InputStream in = url.openStream();
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+         byte[] buf = new byte[65536];
+         int len;
+         while ((len = in.read(buf)) > 0) {
+            bytes.write(buf, 0, len);
+         }
+         return ByteBuffer.wrap(bytes.toByteArray());
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   static String readString(ByteBuffer buf) {
+      ByteBuffer bytes = readBytes(buf);
+      return decode(bytes, 0, bytes.limit());
+   }
+
+   static void writeInts(DataOutputStream out, IntBuffer values) throws IOException {
+      int len = values.limit();
+      out.writeInt(len);
+      for (int i = 0; i < len; i++) {
+         out.writeInt(values.get(i));
+      }
+   }
+
+   /**
+    * @param view if true, return a view over the buffer; otherwise copy the values onto the heap
+    */
+   static IntBuffer readInts(ByteBuffer buf, boolean view) {
+      int len = buf.getInt();
+      IntBuffer ints = buf.asIntBuffer();
+      ints.limit(len);
+      buf.position(buf.position() + len * 4);
+      if (view) {
+         return ints;
+      }
+      int[] values = new int[len];
+      ints.get(values);
+      return IntBuffer.wrap(values);
+   }
+
+   static void writeChars(DataOutputStream out, CharBuffer values) throws IOException {
+      int len = values.limit();
+      out.writeInt(len);
+      for (int i = 0; i < len; i++) {
+         out.writeChar(values.get(i));
+      }
+   }
+
+   /**
+    * @param view if true, return a view over the buffer; otherwise copy the values onto the heap
+    */
+   static CharBuffer readChars(ByteBuffer buf, boolean view) {
+      int len = buf.getInt();
+      CharBuffer chars = buf.asCharBuffer();
+      chars.limit(len);
+      buf.position(buf.position() + len * 2);
+      if (view) {
+         return chars;
+      }
+      char[] values = new char[len];
+      chars.get(values);
+      return CharBuffer.wrap(values);
+   }
+
+   static ByteBuffer readBytes(ByteBuffer buf) {
+      int len = buf.getInt();
+      ByteBuffer bytes = buf.slice();
+      bytes.limit(len);
+      buf.position(buf.position() + len);
+      return bytes;
+   }
+
+   /**
+    * Write a string table
+    */
+   static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+      byte[][] encoded = new byte[strings.length][];
+      for (int i = 0; i < strings.length; i++) {
+         encoded[i] = strings[i].getBytes(UTF8);
+      }
+      writeStrings(out, encoded);
+   }
+
+   static void writeStrings(DataOutputStream out, byte[][] strings) throws IOException {
+      out.writeInt(strings.length + 1);
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] s : strings) {
+         offset += s.length;
+         out.writeInt(offset);
+      }
+      out.writeInt(offset);
+      for (byte[] s : strings) {
+         out.write(s);
+      }
+   }
+
+   static byte[] encode(String s) {
+      return s.getBytes(UTF8);
+   }
+
+   // absolute reads only, so mapped buffers can be shared between threads
+   static String decode(ByteBuffer bytes, int start, int end) {
+      if (bytes.hasArray()) {
+         return new String(bytes.array(), bytes.arrayOffset() + start, end - start, UTF8);
+      }
+      byte[] b = new byte[end - start];
+      for (int i = start; i < end; i++) {
+         b[i - start] = bytes.get(i);
+      }
+      return new String(b, UTF8);
+   }
+}
@@ -23,15 +23,23 @@ import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 
 import javax.sql.DataSource;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
 import java.io.*;
+import java.net.URL;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
  * User: dallan
  * Date: 1/10/12
+ *
+ * A Standardizer is safe to share between threads: the indexes aren't modified once they're loaded,
+ * and everything a standardize call changes is local to that call.
+ * Pass an ErrorHandler to standardize rather than calling setErrorHandler when threads need different handlers.
  */
 public class Standardizer {
    /**
@@ -43,33 +51,117 @@ public class Standardizer {
    public static enum Mode { BEST, REQUIRED, NEW };
 
    public static int MAX_LEVELS = 4;
+   // misspelled names are allowed one edit for every this many letters, up to maxEditDistance
+   private static final int LETTERS_PER_EDIT = 5;
 
    private static Logger logger = Logger.getLogger("org.folg.places.standardize");
    private static int USA_ID = 1500;
+   private static final int MAX_COUNTRY_IDS = 1000;
    private static Standardizer standardizer = new Standardizer();
 
    public static Standardizer getInstance() {
       return standardizer;
    }
 
+   @XmlRootElement
    public static class PlaceScore {
       private Place place;
       private double score;
 
+      // for JAXB
+      private PlaceScore() {
+      }
+
       public PlaceScore(Place place, double score) {
          this.place = place;
          this.score = score;
       }
 
+      @XmlElement
       public Place getPlace() {
          return place;
       }
 
+      @XmlElement
       public double getScore() {
          return score;
       }
    }
 
+   // texts that tokenize to the same levels get the same results for the same arguments
+   private static class ResultKey {
+      private final List<List<String>> levelWords;
+      private final String defaultCountry;
+      private final GeoHint near;
+      private final Mode mode;
+      private final int numResults;
+      private final int hashCode;
+
+      ResultKey(List<List<String>> levelWords, String defaultCountry, GeoHint near, Mode mode, int numResults) {
+         this.levelWords = levelWords;
+         this.defaultCountry = defaultCountry;
+         this.near = near;
+         this.mode = mode;
+         this.numResults = numResults;
+         int h = this.levelWords.hashCode();
+         h = 31 * h + (defaultCountry != null ? defaultCountry.hashCode() : 0);
+         h = 31 * h + (near != null ? near.hashCode() : 0);
+         h = 31 * h + (mode != null ? mode.hashCode() : 0);
+         this.hashCode = 31 * h + numResults;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) {
+            return true;
+         }
+         if (!(o instanceof ResultKey)) {
+            return false;
+         }
+         ResultKey k = (ResultKey)o;
+         return numResults == k.numResults && mode == k.mode &&
+                (defaultCountry != null ? defaultCountry.equals(k.defaultCountry) : k.defaultCountry == null) &&
+                (near != null ? near.equals(k.near) : k.near == null) &&
+                levelWords.equals(k.levelWords);
+      }
+
+      @Override
+      public int hashCode() {
+         return hashCode;
+      }
+   }
+
+   // what matching needs to know about a word, so words in a TokenBuffer can be checked without creating strings
+   private static class WordInfo {
+      private final String expansion;
+      private final boolean isNoiseWord;
+      // whether the word as written is a type word, and whether it is one after expanding it (isTypeWord)
+      private final boolean isType;
+      private final boolean isExpandedType;
+
+      WordInfo(String expansion, boolean isNoiseWord, boolean isType, boolean isExpandedType) {
+         this.expansion = expansion;
+         this.isNoiseWord = isNoiseWord;
+         this.isType = isType;
+         this.isExpandedType = isExpandedType;
+      }
+   }
+
+   // the words skipped at the start of a level so its name token is found, the name and type tokens, and the ids of the name
+   private static class NameMatch {
+      private final int wordsToSkip;
+      private final String nameToken;
+      private final String typeToken;
+      private final int[] ids;
+
+      NameMatch(int wordsToSkip, String nameToken, String typeToken, int[] ids) {
+         this.wordsToSkip = wordsToSkip;
+         this.nameToken = nameToken;
+         this.typeToken = typeToken;
+         this.ids = ids;
+      }
+   }
+
    private static ComboPooledDataSource staticDS = null;
    private static synchronized DataSource getDataSource(String driverClass, String jdbcUrl, String user, String password) {
      if (staticDS == null) {
@@ -121,60 +213,60 @@ public class Standardizer {
    private Set<String> typeWords = null;
    private Map<String,String> abbreviations = null;
    private Set<String> noiseWords = null;
-   private Map<Integer,Place> placeIndex = null;
-   private Map<String,Integer[]> wordIndex = null;
+   private WordTable<WordInfo> wordInfos = null;
+   // replaced only by the read*Index functions
+   private volatile PlaceIndex placeIndex = null;
+   private volatile WordIndex wordIndex = null;
    private DataSource dataSource = null;
    private MemcachedClient memcachedClient = null;
    private String memcacheKeyPrefix = null;
    private int memcacheExpiration = 0;
-   private Set<Integer> largeCountries = null;
-   private Set<Integer> mediumCountries = null;
+   private ScoringModel scoringModel = null;
    private double primaryMatchWeight = 0;
-   private Double[] largeCountryLevelWeights = null;
-   private Double[] mediumCountryLevelWeights = null;
-   private Double[] smallCountryLevelWeights = null;
-   private ErrorHandler errorHandler = null;
+   private volatile int maxEditDistance = 0;
+   private volatile ErrorHandler errorHandler = null;
+   private volatile LruCache<ResultKey,List<PlaceScore>> resultCache = null;
+   private volatile StandardizerMetrics metrics = null;
+   // default country texts resolved to country ids; 0 if the text isn't a country
+   private final Map<String,Integer> countryIds = new ConcurrentHashMap<String,Integer>();
+   private volatile GeoGrid geoGrid = null;
+   private final ThreadLocal<TokenBuffer> tokenBuffers = new ThreadLocal<TokenBuffer>() {
+      @Override
+      protected TokenBuffer initialValue() {
+         return new TokenBuffer();
+      }
+   };
 
    private Standardizer() {
       normalizer = Normalizer.getInstance();
 
       Reader indexReader = null;
-      Reader matchCountsReader = null;
 
       try {
+         // a compiled snapshot holds the properties and both indexes
+         // a snapshot file named by the places.snapshot.file system property is served off-heap from a mapping,
+         // so standardizers in different processes share it through the page cache
+         Snapshot snapshot = null;
+         String snapshotFile = System.getProperty(Snapshot.FILE_PROPERTY);
+         if (snapshotFile != null) {
+            snapshot = Snapshot.read(Snapshot.map(new File(snapshotFile)), true);
+         }
+         else {
+            URL snapshotUrl = getClass().getClassLoader().getResource(Snapshot.RESOURCE_NAME);
+            if (snapshotUrl != null) {
+               snapshot = Snapshot.read(Snapshot.open(snapshotUrl), false);
+            }
+         }
+
          // read properties
          Properties props = new Properties();
-         props.load(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8"));
-
-         // read type words
-         typeWords = new HashSet<String>(Arrays.asList(props.getProperty("typeWords").split(",")));
-
-         // read abbreviations
-         abbreviations = new HashMap<String, String>();
-         for (String abbrMap : props.getProperty("abbreviations").split(",")) {
-            String[] fields = abbrMap.split("=");
-            abbreviations.put(fields[0],fields[1]);
+         if (snapshot != null) {
+            props.load(new StringReader(snapshot.getProperties()));
          }
-
-         // read noise words
-         noiseWords = new HashSet<String>(Arrays.asList(props.getProperty("noiseWords").split(",")));
-
-         // read large countries
-         largeCountries = toIntegerSet(props.getProperty("largeCountries"));
-
-         // read medium countries
-         mediumCountries = toIntegerSet(props.getProperty("mediumCountries"));
-
-         // read large country level weights
-         largeCountryLevelWeights = toDoubleArray(props.getProperty("largeCountryLevelWeights"));
-
-         // read large country level weights
-         mediumCountryLevelWeights = toDoubleArray(props.getProperty("mediumCountryLevelWeights"));
-
-         // read large country level weights
-         smallCountryLevelWeights = toDoubleArray(props.getProperty("smallCountryLevelWeights"));
-
-         primaryMatchWeight = Double.parseDouble(props.getProperty("primaryMatchWeight"));
+         else {
+            props.load(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8"));
+         }
+         readProperties(props);
 
          // initialize db+memcache
          InputStream propStream = getClass().getClassLoader().getResourceAsStream("db_memcache.properties");
@@ -197,11 +289,24 @@ public class Standardizer {
                   memcacheKeyPrefix = props.getProperty("memcacheKeyPrefix")+"p|";
                   memcacheExpiration = Integer.parseInt(props.getProperty("memcacheExpiration"));
                }
+
+               // places and words are read from the database as needed and the most recently used are kept locally,
+               // with memcache (if configured) shared between standardizers in front of the database
+               MemcacheTier memcache = memcachedClient != null ?
+                       new MemcacheTier(memcachedClient, memcacheKeyPrefix, memcacheExpiration) : null;
+               wordIndex = new DatabaseWordIndex(dataSource, memcache,
+                                                 Integer.parseInt(props.getProperty("wordCacheSize", "100000")));
+               placeIndex = new DatabasePlaceIndex(dataSource, memcache,
+                                                   Integer.parseInt(props.getProperty("placeCacheSize", "100000")));
             }
          }
 
-         // if not reading from database, read from file
-         if (dataSource == null) {
+         // if not reading from database, read from the snapshot or from file
+         if (dataSource == null && snapshot != null) {
+            wordIndex = snapshot.getWordIndex();
+            placeIndex = snapshot.getPlaceStore();
+         }
+         else if (dataSource == null) {
             indexReader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream("place_words.csv"), "UTF8");
             readWordIndex(indexReader);
             indexReader.close();
@@ -214,9 +319,6 @@ public class Standardizer {
          throw new RuntimeException("Error reading file:" + e.getMessage());
       } finally {
          try {
-            if (matchCountsReader != null) {
-               matchCountsReader.close();
-            }
             if (indexReader != null) {
                indexReader.close();
             }
@@ -227,41 +329,109 @@ public class Standardizer {
       }
    }
 
-   private Set<Integer> toIntegerSet(String value) {
-      Set<Integer> result = new HashSet<Integer>();
-      for (String field : value.split(",")) {
-         result.add(Integer.parseInt(field));
+   private void readProperties(Properties props) {
+      // read type words
+      typeWords = new HashSet<String>(Arrays.asList(props.getProperty("typeWords").split(",")));
+
+      // read abbreviations
+      abbreviations = new HashMap<String, String>();
+      for (String abbrMap : props.getProperty("abbreviations").split(",")) {
+         String[] fields = abbrMap.split("=");
+         abbreviations.put(fields[0],fields[1]);
+      }
+
+      // read noise words
+      noiseWords = new HashSet<String>(Arrays.asList(props.getProperty("noiseWords").split(",")));
+
+      Set<String> words = new HashSet<String>(typeWords);
+      words.addAll(abbreviations.keySet());
+      words.addAll(noiseWords);
+      Map<String,WordInfo> infos = new HashMap<String,WordInfo>();
+      for (String word : words) {
+         infos.put(word, new WordInfo(abbreviations.get(word), noiseWords.contains(word), typeWords.contains(word), isTypeWord(word)));
+      }
+      wordInfos = new WordTable<WordInfo>(infos);
+
+      // read the scoring model trained by TrainScoring if there is one; otherwise use the hand-set country buckets
+      String scoringModelName = props.getProperty("scoringModel", "").trim();
+      if (scoringModelName.length() > 0) {
+         scoringModel = readScoringModel(scoringModelName);
+      }
+      else {
+         scoringModel = ScoringModel.fromBuckets(toDoubleArray(props.getProperty("smallCountryLevelWeights")),
+                                                 toIntArray(props.getProperty("mediumCountries")),
+                                                 toDoubleArray(props.getProperty("mediumCountryLevelWeights")),
+                                                 toIntArray(props.getProperty("largeCountries")),
+                                                 toDoubleArray(props.getProperty("largeCountryLevelWeights")));
+      }
+
+      primaryMatchWeight = Double.parseDouble(props.getProperty("primaryMatchWeight"));
+
+      setResultCacheSize(Integer.parseInt(props.getProperty("resultCacheSize", "0")));
+
+      maxEditDistance = Integer.parseInt(props.getProperty("maxEditDistance", "0"));
+
+      // keep collecting into the same metrics if the indexes are read again
+      if (Boolean.parseBoolean(props.getProperty("metrics", "false")) && metrics == null) {
+         StandardizerMetrics m = new StandardizerMetrics();
+         m.registerMBean();
+         metrics = m;
+      }
+   }
+
+   private int[] toIntArray(String value) {
+      String[] fields = value.split(",");
+      int[] result = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+         result[i] = Integer.parseInt(fields[i]);
       }
       return result;
    }
 
-   private Double[] toDoubleArray(String value) {
+   private double[] toDoubleArray(String value) {
       String[] fields = value.split(",");
-      Double[] result = new Double[fields.length];
+      double[] result = new double[fields.length];
       for (int i = 0; i < fields.length; i++) {
          result[i] = Double.parseDouble(fields[i]);
       }
       return result;
    }
 
+   // the model is a file if one exists at that path, otherwise a resource
+   private ScoringModel readScoringModel(String name) {
+      try {
+         InputStream in;
+         File file = new File(name);
+         if (file.isFile()) {
+            in = new FileInputStream(file);
+         }
+         else {
+            in = getClass().getClassLoader().getResourceAsStream(name);
+            if (in == null) {
+               throw new RuntimeException("Error reading scoring model: "+name+" not found");
+            }
+         }
+         Reader reader = new InputStreamReader(in, "UTF8");
+         try {
+            return ScoringModel.parse(reader);
+         }
+         finally {
+            reader.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("Error reading scoring model: "+e.getMessage());
+      }
+   }
+
    /**
     * Read the word index
     * You would not normally call this function. Used in testing
     */
    public void readWordIndex(Reader reader) throws IOException {
-      wordIndex = new HashMap<String, Integer[]>();
-      BufferedReader r = new BufferedReader(reader);
-      String line;
-      while ((line = r.readLine()) != null) {
-         String[] fields = line.split("\\|");
-         String[] idStrings = fields[1].split(",");
-         Integer[] ids = new Integer[idStrings.length];
-         for (int i = 0; i < idStrings.length; i++) {
-            ids[i] = Integer.parseInt(idStrings[i]);
-         }
-
-         wordIndex.put(fields[0], ids);
-      }
+      wordIndex = TrieWordIndex.parse(reader);
+      clearResultCache();
+      countryIds.clear();
    }
 
    /**
@@ -269,54 +439,108 @@ public class Standardizer {
     * You would not normally call this function. Used in testing
     */
    public void readPlaceIndex(Reader reader) throws IOException {
-      placeIndex = new HashMap<Integer, Place>();
-      BufferedReader r = new BufferedReader(reader);
-      String line;
-      while ((line = r.readLine()) != null) {
-         String[] fields = line.split("\\|");
-         Place p = new Place();
-         p.setStandardizer(this);
-         p.setId(Integer.parseInt(fields[0]));
-         p.setName(fields[1]);
-         if (fields[2].length() > 0) p.setAltNames(fields[2].split(","));
-         if (fields[3].length() > 0) p.setTypes(fields[3].split(","));
-         p.setLocatedInId(Integer.parseInt(fields[4]));
-         if (fields[5].length() > 0) {
-            String[] idStrings = fields[5].split(",");
-            int[] ids = new int[idStrings.length];
-            for (int i = 0; i < idStrings.length; i++) {
-               ids[i] = Integer.parseInt(idStrings[i]);
-            }
-            p.setAlsoLocatedInIds(ids);
-         }
-         p.setLevel(Integer.parseInt(fields[6]));
-         p.setCountry(Integer.parseInt(fields[7]));
-         if (fields.length > 8 && fields[8].length() > 0) p.setLatitude(Double.parseDouble(fields[8]));
-         if (fields.length > 9 && fields[9].length() > 0) p.setLongitude(Double.parseDouble(fields[9]));
+      placeIndex = PlaceStore.parse(reader);
+      clearResultCache();
+      countryIds.clear();
+   }
+
+   private void clearResultCache() {
+      LruCache<ResultKey,List<PlaceScore>> cache = resultCache;
+      if (cache != null) {
+         cache.clear();
+      }
+   }
 
-         placeIndex.put(p.getId(), p);
+   /**
+    * Read the properties, word index, and place index from a snapshot compiled by Snapshot.write
+    * You would not normally call this function. Used in testing
+    * @param mapped if true, serve the indexes from the mapped file instead of copying them onto the heap
+    */
+   public void readSnapshot(File file, boolean mapped) throws IOException {
+      Snapshot snapshot = Snapshot.read(Snapshot.map(file), mapped);
+      Properties props = new Properties();
+      props.load(new StringReader(snapshot.getProperties()));
+      readProperties(props);
+      wordIndex = snapshot.getWordIndex();
+      placeIndex = snapshot.getPlaceStore();
+      countryIds.clear();
+   }
+
+   /**
+    * @return hits, misses, and sizes of the local word and place caches, or null if the indexes aren't read from a database
+    */
+   public String getCacheStatistics() {
+      if (dataSource == null) {
+         return null;
       }
+      return "words: "+((DatabaseWordIndex)wordIndex).getCache()+"; places: "+((DatabasePlaceIndex)placeIndex).getCache();
+   }
+
+   /**
+    * Cache the results of up to size distinct standardize calls; 0 disables the cache.
+    * The cache isn't used for calls with an error handler, so the handler sees every call.
+    */
+   public void setResultCacheSize(int size) {
+      resultCache = size > 0 ? new LruCache<ResultKey,List<PlaceScore>>(size) : null;
    }
 
+   /**
+    * @return hits, misses, hit rate and size of the result cache, or null if it's disabled
+    */
+   public String getResultCacheStatistics() {
+      LruCache<ResultKey,List<PlaceScore>> cache = resultCache;
+      return cache != null ? cache.toString() : null;
+   }
+
+   /**
+    * When no name matches a level exactly, match names within this many edits (insertions, deletions or substitutions),
+    * allowing one edit for every five letters; 0, the default, matches exactly.
+    * Names from the database index can only be matched exactly.
+    */
+   public void setMaxEditDistance(int maxEditDistance) {
+      this.maxEditDistance = maxEditDistance;
+      clearResultCache();
+   }
+
+   /**
+    * Collect metrics into the given metrics, or stop collecting if null.
+    * The metrics aren't registered with JMX; call registerMBean to do that.
+    */
+   public void setMetrics(StandardizerMetrics metrics) {
+      this.metrics = metrics;
+   }
+
+   /**
+    * @return the metrics being collected, or null if they aren't
+    */
+   public StandardizerMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Set the error handler used by standardize calls that don't pass one
+    */
    public void setErrorHandler(ErrorHandler errorHandler) {
       this.errorHandler = errorHandler;
    }
 
    // return null if word not found
-   private List<Integer> lookupWord(String word) {
-      Integer[] ids = wordIndex.get(word);
-      if (ids != null) {
-         return Arrays.asList(ids);
-      }
-      return null;
+   private int[] lookupWord(String word) {
+      return wordIndex.lookup(word);
    }
 
    public Place getPlace(int id) {
-      Place p = placeIndex.get(id);
-      if (p == null) {
+      int row = getPlaceRow(id);
+      return row >= 0 ? new Place(placeIndex, row, this) : null;
+   }
+
+   // matching code works on rows of the place store so it doesn't have to create Place objects
+   private int getPlaceRow(int id) {
+      int row = placeIndex.getRow(id);
+      if (row < 0) {
          logger.severe("Place not found: "+id);
       }
-      return p;
+      return row;
    }
 
    public String generatePlaceName(List<String> words) {
@@ -344,26 +568,60 @@ public class Standardizer {
       return buf.toString();
    }
 
-   private boolean checkAncestorMatch(int id, List<Integer> ids) {
-      Place p = getPlace(id);
-      int locatedInId = p.getLocatedInId();
-      if (locatedInId > 0) {
-         if (ids.contains(locatedInId) || checkAncestorMatch(locatedInId, ids)) {
-            return true;
+   // error handler arguments are views over the id arrays, which aren't modified once they're built
+   private static List<Integer> toList(final int[] ids) {
+      if (ids == null) {
+         return null;
+      }
+      return new AbstractList<Integer>() {
+         @Override
+         public Integer get(int i) {
+            return ids[i];
          }
+
+         @Override
+         public int size() {
+            return ids.length;
+         }
+      };
+   }
+
+   // the ids without their children, computed only if the error handler looks at them
+   // (possibly on another thread, if the handler queues its errors)
+   private List<Integer> toParentList(final int[] ids) {
+      if (ids == null) {
+         return null;
       }
-      if (p.getAlsoLocatedInIds() != null) {
-         for (int alii : p.getAlsoLocatedInIds()) {
-            if (ids.contains(alii) || checkAncestorMatch(alii, ids)) {
-               return true;
+      return new AbstractList<Integer>() {
+         private int[] parentIds = null;
+
+         private synchronized int[] getParentIds() {
+            if (parentIds == null) {
+               parentIds = removeChildIds(ids);
             }
+            return parentIds;
          }
-      }
-      return false;
+
+         @Override
+         public Integer get(int i) {
+            return getParentIds()[i];
+         }
+
+         @Override
+         public int size() {
+            return getParentIds().length;
+         }
+      };
    }
 
-   private List<Integer> filterSubplaceMatches(List<Integer> children, List<Integer> parents) {
-      List<Integer> result = new ArrayList<Integer>();
+   // id lists are kept in ascending order so the ancestor closure can be intersected with them
+   private boolean checkAncestorMatch(int id, int[] ids) {
+      int row = getPlaceRow(id);
+      return row >= 0 && placeIndex.hasAncestorIn(row, ids);
+   }
+
+   private int[] filterSubplaceMatches(int[] children, int[] parents) {
+      IntList result = new IntList(children.length);
 
       for (int child : children) {
          if (checkAncestorMatch(child, parents)) {
@@ -371,57 +629,43 @@ public class Standardizer {
          }
       }
 
-      return result;
+      StandardizerMetrics metrics = this.metrics;
+      if (metrics != null) {
+         metrics.recordSubplaceFilter(children.length, result.size());
+      }
+      return result.toArray();
    }
 
-   private List<Integer> filterTypeMatches(String typeToken, List<Integer> ids) {
-      List<Integer> result = new ArrayList<Integer>();
+   private int[] filterTypeMatches(String typeToken, int[] ids) {
+      IntList result = new IntList(ids.length);
 
       for (int id : ids) {
-         Place p = getPlace(id);
-         String normalizedName = normalizer.normalize(p.getName());
-         // does primary name contain the type words?
-         if (normalizedName.indexOf(typeToken) >= 0) {
+         int row = getPlaceRow(id);
+         // does primary name or one of the types contain the type words?
+         if (placeIndex.nameContains(row, typeToken) || placeIndex.typeContains(row, typeToken)) {
             result.add(id);
          }
-         else if (p.getTypes() != null) {
-            for (String type : p.getTypes()) {
-               String normalizedType = normalizer.normalize(type);
-               // does one of the types contain the type words?
-               if (normalizedType.indexOf(typeToken) >= 0) {
-                  result.add(id);
-                  break;
-               }
-            }
-         }
       }
 
-      return result;
-   }
-
-   private double scoreMatch(String nameToken, Place p) {
-      String normalizedName = normalizer.normalize(p.getName());
-      boolean isPrimaryNameMatch = normalizedName.indexOf(nameToken) >= 0;
-      int level = p.getLevel();
-      int countryId = p.getCountry();
-      Double[] weights;
-
-      if (largeCountries.contains(countryId)) {
-         weights = largeCountryLevelWeights;
-      }
-      else if (mediumCountries.contains(countryId)) {
-         weights = mediumCountryLevelWeights;
-      }
-      else {
-         weights = smallCountryLevelWeights;
+      StandardizerMetrics metrics = this.metrics;
+      if (metrics != null) {
+         metrics.recordTypeFilter(ids.length, result.size());
       }
+      return result.toArray();
+   }
 
-      double score = weights[Math.min(MAX_LEVELS,level)-1];
+   private double scoreMatch(String nameToken, int row) {
+      boolean isPrimaryNameMatch = placeIndex.nameContains(row, nameToken);
+      double score = scoringModel.getLevelWeight(placeIndex.getCountry(row), placeIndex.getLevel(row));
 
       if (isPrimaryNameMatch) {
          score += primaryMatchWeight;
       }
 
+      if (scoringModel.getPlaceCount() > 0) {
+         score += scoringModel.getPlacePrior(placeIndex.getId(row));
+      }
+
       return score;
    }
 
@@ -433,134 +677,580 @@ public class Standardizer {
       return typeWords.contains(word);
    }
 
-   // catenate all of the words together into one token, with ending type words in a second token
-   private String[] getNameTypeToken(List<String> words, int wordsToSkip) {
+   private boolean isNoiseWord(TokenBuffer tokens, int w) {
+      WordInfo info = wordInfos.get(tokens, w);
+      return info != null && info.isNoiseWord;
+   }
+
+   private boolean isTypeWord(TokenBuffer tokens, int w) {
+      WordInfo info = wordInfos.get(tokens, w);
+      return info != null && info.isExpandedType;
+   }
+
+   private WordInfo[] getWordInfos(TokenBuffer tokens, int level) {
+      WordInfo[] infos = new WordInfo[tokens.getWordCount(level)];
+      for (int i = 0; i < infos.length; i++) {
+         infos[i] = wordInfos.get(tokens, tokens.word(level, i));
+      }
+      return infos;
+   }
+
+   private static boolean isType(WordInfo info, boolean expand) {
+      return info != null && (expand && info.expansion != null ? info.isExpandedType : info.isType);
+   }
+
+   // find the words that getNameTypeToken catenates: range[0] and range[1] are the first and last name words
+   // (or -1 if there is no name token), and range[2] is the first word of the type token (or -1 if there is none);
+   // the type token runs to the end of the level
+   private void getNameTypeRange(TokenBuffer tokens, int level, int wordsToSkip, WordInfo[] infos, int[] range) {
+      int wordCount = tokens.getWordCount(level);
+      // expand abbreviations only if there is >1 word in the phrase
+      // keeps from expanding places like No, Niigata, Japan into North
+      boolean expand = wordCount - wordsToSkip > 1;
+      int first = wordsToSkip;
+      int lastNameWord = -1;
+      for (int i = wordCount-1; i >= wordsToSkip; i--) {
+         int w = tokens.word(level, i);
+         // skip everything before or (unless it's the first or last word) or now
+         if (i > wordsToSkip && i < wordCount-1 && tokens.wordEquals(w, "or") || tokens.wordEquals(w, "now")) {
+            first = i+1;
+            break;
+         }
+         if (lastNameWord < 0 && !isType(infos[i], expand)) {
+            lastNameWord = i;
+         }
+      }
+      if (first == wordCount) {
+         range[0] = range[1] = range[2] = -1;
+      }
+      else if (lastNameWord < 0) {
+         // all type words
+         range[0] = first;
+         range[1] = wordCount-1;
+         range[2] = -1;
+      }
+      else {
+         // type words after a name word go into the type token
+         range[0] = first;
+         range[1] = lastNameWord;
+         range[2] = lastNameWord < wordCount-1 ? lastNameWord+1 : -1;
+      }
+   }
+
+   private void appendWord(StringBuilder buf, TokenBuffer tokens, int w, WordInfo info, boolean expand) {
+      if (expand && info != null && info.expansion != null) {
+         buf.append(info.expansion);
+      }
+      else {
+         buf.append(tokens.chars, tokens.wordStarts[w], tokens.wordEnds[w] - tokens.wordStarts[w]);
+      }
+   }
+
+   private String catenateWords(TokenBuffer tokens, int level, int first, int last, WordInfo[] infos, boolean expand) {
       StringBuilder buf = new StringBuilder();
+      for (int i = first; i <= last; i++) {
+         appendWord(buf, tokens, tokens.word(level, i), infos[i], expand);
+      }
+      return buf.toString();
+   }
+
+   // catenate all of the words together into one token, with ending type words in a second token
+   private String[] getNameTypeToken(TokenBuffer tokens, int level, int wordsToSkip, WordInfo[] infos) {
       String[] result = new String[2];
-      result[0] = null; // name token
-      result[1] = null; // type token (optional)
-      boolean foundNameWord = false;
-      for (int i = words.size()-1; i >= wordsToSkip; i--) {
-         String word = words.get(i);
-         if (word.length() > 0) {
-            // skip everything before or or now
-            if (i > wordsToSkip && buf.length() > 0 && "or".equals(word) || "now".equals(word)) {
-               break;
+      int[] range = new int[3];
+      getNameTypeRange(tokens, level, wordsToSkip, infos, range);
+      boolean expand = tokens.getWordCount(level) - wordsToSkip > 1;
+      if (range[0] >= 0) {
+         result[0] = catenateWords(tokens, level, range[0], range[1], infos, expand);
+      }
+      if (range[2] >= 0) {
+         result[1] = catenateWords(tokens, level, range[2], tokens.getWordCount(level)-1, infos, expand);
+      }
+      return result;
+   }
+
+   // find the fewest words to skip at the start of the level so that the name token is a word;
+   // the name tokens for successive skips that end with the same word and expand abbreviations the same way
+   // are suffixes of the first of them, so they're all looked up in one pass over it
+   // return null if no name token is a word
+   private NameMatch lookupNameToken(TokenBuffer tokens, int level) {
+      int wordCount = tokens.getWordCount(level);
+      if (wordCount == 1) {
+         // nothing to skip and abbreviations aren't expanded, so the name token is the word
+         int w = tokens.word(level, 0);
+         if (tokens.wordEquals(w, "now")) {
+            return null;
+         }
+         String nameToken = new String(tokens.chars, tokens.wordStarts[w], tokens.wordEnds[w] - tokens.wordStarts[w]);
+         int[] ids = wordIndex.lookup(nameToken);
+         return ids != null ? new NameMatch(0, nameToken, null, ids) : null;
+      }
+
+      WordInfo[] infos = getWordInfos(tokens, level);
+      int[] range = new int[3];
+      // the last token looked up, the word it starts with, and the ids of the suffixes starting at each of its words
+      StringBuilder buf = null;
+      int first = 0;
+      int last = -1;
+      boolean expanded = false;
+      int[] starts = null;
+      int[][] suffixIds = null;
+      for (int wordsToSkip = 0; wordsToSkip < wordCount; wordsToSkip++) {
+         getNameTypeRange(tokens, level, wordsToSkip, infos, range);
+         if (range[0] < 0) {
+            continue;
+         }
+         boolean expand = wordCount - wordsToSkip > 1;
+         if (buf == null || range[0] < first || range[1] != last || expand != expanded) {
+            buf = new StringBuilder();
+            first = range[0];
+            last = range[1];
+            expanded = expand;
+            starts = new int[last - first + 1];
+            for (int i = first; i <= last; i++) {
+               starts[i - first] = buf.length();
+               appendWord(buf, tokens, tokens.word(level, i), infos[i], expand);
             }
-            // expand abbreviations only if there is >1 word in the phrase
-            // keeps from expanding places like No, Niigata, Japan into North
-            if (words.size() - wordsToSkip > 1) {
-               String expansion = abbreviations.get(word);
-               if (expansion != null) {
-                  word = expansion;
+            // words read from the database are looked up one name token at a time, so only the tokens tried are read
+            suffixIds = dataSource == null ? wordIndex.lookupSuffixes(buf, starts) : null;
+         }
+         int[] ids = suffixIds != null ? suffixIds[range[0] - first] : wordIndex.lookup(buf.substring(starts[range[0] - first]));
+         if (ids != null) {
+            String typeToken = range[2] >= 0 ? catenateWords(tokens, level, range[2], wordCount-1, infos, expand) : null;
+            return new NameMatch(wordsToSkip, buf.substring(starts[range[0] - first]), typeToken, ids);
+         }
+      }
+      return null;
+   }
+
+   // when no name token is a word, look for words within a few edits of each name token, skipping words as above;
+   // take the ids of the closest words that are subplaces of the current matches, if there are any
+   // return null if there are no such words
+   private NameMatch lookupMisspelledNameToken(TokenBuffer tokens, int level, int[] currentIds) {
+      WordInfo[] infos = getWordInfos(tokens, level);
+      for (int wordsToSkip = 0; wordsToSkip < tokens.getWordCount(level); wordsToSkip++) {
+         String[] nameType = getNameTypeToken(tokens, level, wordsToSkip, infos);
+         int maxDistance = nameType[0] != null ? Math.min(maxEditDistance, nameType[0].length() / LETTERS_PER_EDIT) : 0;
+         if (maxDistance == 0) {
+            continue;
+         }
+         List<WordMatch> matches = wordIndex.lookupFuzzy(nameType[0], maxDistance);
+         for (int distance = 1; distance <= maxDistance; distance++) {
+            String nameToken = null;
+            IntList ids = new IntList();
+            for (WordMatch match : matches) {
+               if (match.getDistance() == distance) {
+                  if (nameToken == null) {
+                     nameToken = match.getWord();
+                  }
+                  for (int id : match.getIds()) {
+                     ids.add(id);
+                  }
                }
             }
-            if (!typeWords.contains(word)) {
-               // type words after a name word go into the type token position
-               if (!foundNameWord && buf.length() > 0) {
-                  result[1] = buf.toString();
-                  buf.setLength(0);
+            if (nameToken != null) {
+               int[] matchingIds = toSortedSet(ids.toArray());
+               if (currentIds != null) {
+                  matchingIds = filterSubplaceMatches(matchingIds, currentIds);
+               }
+               if (matchingIds.length > 0) {
+                  return new NameMatch(wordsToSkip, nameToken, nameType[1], matchingIds);
                }
-               foundNameWord= true;
             }
-            buf.insert(0,word);
          }
       }
-      if (buf.length() > 0) {
-         result[0] = buf.toString();
+      return null;
+   }
+
+   // sort the ids and remove duplicates
+   private static int[] toSortedSet(int[] ids) {
+      Arrays.sort(ids);
+      int size = 0;
+      for (int i = 0; i < ids.length; i++) {
+         if (size == 0 || ids[i] != ids[size-1]) {
+            ids[size++] = ids[i];
+         }
       }
-      return result;
+      return Arrays.copyOf(ids, size);
    }
 
-   private boolean containsNonNoiseWords(List<String> words) {
-      for (String word : words) {
-         if (!noiseWords.contains(word)) {
+   private void prefetchNameTokens(Collection<TokenBuffer> texts) {
+      Set<String> nameTokens = new HashSet<String>();
+      for (TokenBuffer tokens : texts) {
+         for (int level = 0; level < tokens.getLevelCount(); level++) {
+            WordInfo[] infos = getWordInfos(tokens, level);
+            for (int wordsToSkip = 0; wordsToSkip < tokens.getWordCount(level); wordsToSkip++) {
+               String nameToken = getNameTypeToken(tokens, level, wordsToSkip, infos)[0];
+               if (nameToken != null) {
+                  nameTokens.add(nameToken);
+               }
+            }
+         }
+      }
+      wordIndex.prefetch(nameTokens);
+   }
+
+   // read the words and places that matching these texts will look up, a round per number of words skipped:
+   // the next name token of a level is read only if none of the level's previous name tokens was found,
+   // so words the matching never reaches don't push the words it needs out of the cache
+   private void prefetchMatches(List<TokenBuffer> texts) {
+      List<PendingLevel> pending = new ArrayList<PendingLevel>();
+      for (TokenBuffer tokens : texts) {
+         for (int level = 0; level < tokens.getLevelCount(); level++) {
+            // lookupNameToken doesn't look up a level that's just "now"
+            if (tokens.getWordCount(level) > 1 || !tokens.wordEquals(tokens.word(level, 0), "now")) {
+               pending.add(new PendingLevel(tokens, level, getWordInfos(tokens, level)));
+            }
+         }
+      }
+
+      IntList ids = new IntList();
+      for (int wordsToSkip = 0; pending.size() > 0; wordsToSkip++) {
+         Set<String> nameTokens = new HashSet<String>();
+         List<PendingLevel> remaining = new ArrayList<PendingLevel>(pending.size());
+         for (PendingLevel p : pending) {
+            if (wordsToSkip < p.tokens.getWordCount(p.level)) {
+               p.nameToken = getNameTypeToken(p.tokens, p.level, wordsToSkip, p.infos)[0];
+               if (p.nameToken != null) {
+                  nameTokens.add(p.nameToken);
+               }
+               remaining.add(p);
+            }
+         }
+         wordIndex.prefetch(nameTokens);
+
+         pending = new ArrayList<PendingLevel>(remaining.size());
+         for (PendingLevel p : remaining) {
+            int[] tokenIds = p.nameToken != null ? lookupWord(p.nameToken) : null;
+            if (tokenIds != null) {
+               for (int id : tokenIds) {
+                  ids.add(id);
+               }
+            }
+            else {
+               pending.add(p);
+            }
+         }
+      }
+      placeIndex.prefetch(ids.toArray());
+   }
+
+   // a level whose name token hasn't been found yet
+   private static class PendingLevel {
+      private final TokenBuffer tokens;
+      private final int level;
+      private final WordInfo[] infos;
+      private String nameToken = null;
+
+      PendingLevel(TokenBuffer tokens, int level, WordInfo[] infos) {
+         this.tokens = tokens;
+         this.level = level;
+         this.infos = infos;
+      }
+   }
+
+   private boolean containsNonNoiseWords(TokenBuffer tokens, int level) {
+      for (int i = 0; i < tokens.getWordCount(level); i++) {
+         if (!isNoiseWord(tokens, tokens.word(level, i))) {
             return true;
          }
       }
       return false;
    }
 
-   private boolean containsNonNoiseLevels(List<List<String>> levelWords) {
-      for (List<String> words : levelWords) {
-         if (containsNonNoiseWords(words)) {
+   private boolean containsNonNoiseLevels(TokenBuffer tokens) {
+      for (int level = 0; level < tokens.getLevelCount(); level++) {
+         if (containsNonNoiseWords(tokens, level)) {
             return true;
          }
       }
       return false;
    }
 
+   /**
+    * @param defaultCountry a country id, or a country name as it would appear in a place text
+    * @return the id of the country, or 0 if it isn't one
+    */
+   int getCountryId(String defaultCountry) {
+      Integer countryId = countryIds.get(defaultCountry);
+      if (countryId == null) {
+         countryId = lookupCountryId(defaultCountry);
+         // don't let callers passing arbitrary texts grow the map without bound
+         if (countryIds.size() < MAX_COUNTRY_IDS) {
+            countryIds.put(defaultCountry, countryId);
+         }
+      }
+      return countryId;
+   }
+
+   private int lookupCountryId(String defaultCountry) {
+      String text = defaultCountry.trim();
+      if (text.matches("[0-9]+")) {
+         try {
+            int id = Integer.parseInt(text);
+            return isCountry(id) ? id : 0;
+         } catch (NumberFormatException e) {
+            return 0;
+         }
+      }
+      TokenBuffer tokens = new TokenBuffer();
+      normalizer.tokenize(text, tokens);
+      if (tokens.getLevelCount() == 0) {
+         return 0;
+      }
+      // the lowest-numbered country with the name as its primary name, else as an alternate name
+      NameMatch nameMatch = lookupNameToken(tokens, tokens.getLevelCount()-1);
+      int altNameId = 0;
+      if (nameMatch != null) {
+         for (int id : nameMatch.ids) {
+            if (isCountry(id)) {
+               if (placeIndex.nameContains(placeIndex.getRow(id), nameMatch.nameToken)) {
+                  return id;
+               }
+               if (altNameId == 0) {
+                  altNameId = id;
+               }
+            }
+         }
+      }
+      return altNameId;
+   }
+
+   private boolean isCountry(int id) {
+      int row = placeIndex.getRow(id);
+      return row >= 0 && placeIndex.getLevel(row) == 1;
+   }
+
+   // keep the places in the country, unless none of them are
+   private int[] filterCountryMatches(int countryId, int[] ids) {
+      IntList result = new IntList(ids.length);
+      for (int id : ids) {
+         if (placeIndex.getCountry(getPlaceRow(id)) == countryId) {
+            result.add(id);
+         }
+      }
+      return result.size() > 0 ? result.toArray() : ids;
+   }
+
+   // places without coordinates are taken to be infinitely far away
+   private double getDistanceKm(GeoHint near, int row) {
+      double lat = placeIndex.getLatitude(row);
+      double lon = placeIndex.getLongitude(row);
+      if (!GeoGrid.hasCoordinates(lat, lon)) {
+         return Double.POSITIVE_INFINITY;
+      }
+      return GeoGrid.distanceKm(near.getLatitude(), near.getLongitude(), lat, lon);
+   }
+
+   // keep the places within the hinted radius, unless none of them are
+   private int[] filterNearMatches(GeoHint near, int[] ids) {
+      IntList result = new IntList(ids.length);
+      for (int id : ids) {
+         int row = getPlaceRow(id);
+         if (GeoGrid.isWithin(near.getLatitude(), near.getLongitude(),
+                              placeIndex.getLatitude(row), placeIndex.getLongitude(row), near.getRadiusKm())) {
+            result.add(id);
+         }
+      }
+      return result.size() > 0 ? result.toArray() : ids;
+   }
+
+   /**
+    * Find the places near a point; the spatial index is built the first time this is called
+    * @return up to maxResults places within radiusKm of the point, nearest first
+    * @throws UnsupportedOperationException if the place index is read from the database
+    */
+   public List<Place> getPlacesNear(double latitude, double longitude, double radiusKm, int maxResults) {
+      GeoGrid grid = getGeoGrid();
+      List<Place> places = new ArrayList<Place>();
+      for (int row : grid.getRowsNear(latitude, longitude, radiusKm, maxResults)) {
+         places.add(new Place(grid.getStore(), row, this));
+      }
+      return places;
+   }
+
+   // built for the current place index, and rebuilt if the index is read again
+   private GeoGrid getGeoGrid() {
+      PlaceIndex index = placeIndex;
+      if (!(index instanceof PlaceStore)) {
+         throw new UnsupportedOperationException("Places near a point can only be found when the place index is in memory");
+      }
+      GeoGrid grid = geoGrid;
+      if (grid == null || grid.getStore() != index) {
+         synchronized (this) {
+            grid = geoGrid;
+            if (grid == null || grid.getStore() != index) {
+               grid = new GeoGrid((PlaceStore)index);
+               geoGrid = grid;
+            }
+         }
+      }
+      return grid;
+   }
+
    // once you've matched a country or a US state, you can't skip over it
-   private boolean isSkippable(List<Integer> ids) {
+   private boolean isSkippable(int[] ids) {
       for (int id : ids) {
-         Place p = getPlace(id);
-         if (p.getLevel() == 1 ||
-             (p.getLevel() == 2 && p.getCountry() == USA_ID)) {
+         int row = getPlaceRow(id);
+         int level = placeIndex.getLevel(row);
+         if (level == 1 ||
+             (level == 2 && placeIndex.getCountry(row) == USA_ID)) {
             return false;
          }
       }
       return true;
    }
 
-   private List<Integer> removeChildIds(List<Integer> currentIds) {
+   private int[] removeChildIds(int[] currentIds) {
       if (currentIds != null) {
-         List<Integer> ids = new ArrayList<Integer>();
+         IntList ids = new IntList(currentIds.length);
          for (int id : currentIds) {
             if (!checkAncestorMatch(id, currentIds)) {
                ids.add(id);
             }
          }
-         currentIds = ids;
+         currentIds = ids.toArray();
       }
       return currentIds;
    }
 
    public List<PlaceScore> standardize(String text, String defaultCountry, Mode mode, int numResults) {
-      List<List<String>> levelWords = normalizer.tokenize(text);
-      List<Integer> currentIds = null;
-      List<Integer> previousIds = null;
+      return standardize(text, defaultCountry, null, mode, numResults, errorHandler);
+   }
+
+   /**
+    * @param errorHandler called with the errors found standardizing this text; may be null
+    */
+   public List<PlaceScore> standardize(String text, String defaultCountry, Mode mode, int numResults, ErrorHandler errorHandler) {
+      return standardize(text, defaultCountry, null, mode, numResults, errorHandler);
+   }
+
+   /**
+    * @param near where the place is expected to be; may be null
+    */
+   public List<PlaceScore> standardize(String text, String defaultCountry, GeoHint near, Mode mode, int numResults) {
+      return standardize(text, defaultCountry, near, mode, numResults, errorHandler);
+   }
+
+   /**
+    * @param near where the place is expected to be; may be null
+    * @param errorHandler called with the errors found standardizing this text; may be null
+    */
+   public List<PlaceScore> standardize(String text, String defaultCountry, GeoHint near, Mode mode, int numResults,
+                                       ErrorHandler errorHandler) {
+      StandardizerMetrics metrics = this.metrics;
+      long startNanos = metrics != null ? System.nanoTime() : 0;
+      // each thread reuses its own token buffer
+      TokenBuffer tokens = tokenBuffers.get();
+      if (tokens.inUse) {
+         // called from an error handler during another standardize call on this thread
+         tokens = new TokenBuffer();
+      }
+      tokens.inUse = true;
+      try {
+         normalizer.tokenize(text, tokens);
+         LruCache<ResultKey,List<PlaceScore>> cache = getResultCache(errorHandler);
+         ResultKey key = null;
+         if (cache != null) {
+            key = new ResultKey(tokens.toLevels(), defaultCountry, near, mode, numResults);
+            List<PlaceScore> results = cache.get(key);
+            if (results != null) {
+               if (metrics != null) {
+                  metrics.recordResultCacheHit();
+               }
+               return copyResults(results);
+            }
+         }
+
+         // read all the name tokens we might look up together when the index isn't in memory
+         if (dataSource != null) {
+            prefetchNameTokens(Collections.singletonList(tokens));
+         }
+
+         List<PlaceScore> results = standardize(text, tokens, defaultCountry, near, mode, numResults, errorHandler);
+         if (cache != null) {
+            cache.put(key, copyResults(results));
+         }
+         return results;
+      }
+      finally {
+         tokens.inUse = false;
+         if (metrics != null) {
+            metrics.recordCall(mode);
+            metrics.recordLatency(System.nanoTime() - startNanos);
+         }
+      }
+   }
+
+   // the result cache, if enabled and there's no error handler to call
+   private LruCache<ResultKey,List<PlaceScore>> getResultCache(ErrorHandler errorHandler) {
+      return errorHandler == null ? resultCache : null;
+   }
+
+   // cached results are copied in and out so callers can't modify the cached places
+   private static List<PlaceScore> copyResults(List<PlaceScore> results) {
+      List<PlaceScore> copy = new ArrayList<PlaceScore>(results.size());
+      for (PlaceScore ps : results) {
+         copy.add(new PlaceScore(ps.getPlace().copy(), ps.getScore()));
+      }
+      return copy;
+   }
+
+   // all state is local so concurrent calls don't interfere
+   // words pushed down to a new level are added to the token buffer
+   private List<PlaceScore> standardize(String text, TokenBuffer tokens, String defaultCountry, GeoHint near, Mode mode,
+                                        int numResults, ErrorHandler errorHandler) {
+      int[] currentIds = null;
+      int[] previousIds = null;
       String currentNameToken = null;
       int lastFoundLevel = -1;
       // log only the first error per place -- skipping words can result in multiple errors, but we want to log the whole phrase
       boolean errorLogged = false;
+      StandardizerMetrics metrics = this.metrics;
+      long startNanos = 0;
+      if (metrics != null) {
+         startNanos = System.nanoTime();
+         // errors are counted as they're reported, so collecting metrics costs as much as having an error handler
+         errorHandler = metrics.countErrors(errorHandler);
+      }
 
-      for (int level = levelWords.size()-1; level >= 0; level--) {
-         List<String> words = levelWords.get(level);
+      for (int level = tokens.getLevelCount()-1; level >= 0; level--) {
          // if all words don't match, back off and insert left-hand words as a new level
          // (for people who don't use commas)
-         int wordsToSkip = 0;
-         List<Integer> ids = null;
-         String[] nameType = null;
-         while (wordsToSkip < words.size()) {
-            nameType = getNameTypeToken(words, wordsToSkip);
-
-            // lookup name token
-            ids = lookupWord(nameType[0]);
-            if (ids != null) {
-               break;
-            }
-            wordsToSkip++;
+         NameMatch nameMatch = lookupNameToken(tokens, level);
+         if (nameMatch == null && maxEditDistance > 0) {
+            nameMatch = lookupMisspelledNameToken(tokens, level, currentIds);
+         }
+         if (metrics != null) {
+            // each word skipped is another lookup; when nothing matched, every shorter name was tried
+            metrics.recordBackoffs(nameMatch != null ? nameMatch.wordsToSkip : tokens.getWordCount(level) - 1);
          }
+         int wordsToSkip = nameMatch != null ? nameMatch.wordsToSkip : 0;
+         int[] ids = nameMatch != null ? nameMatch.ids : null;
          if (ids != null && wordsToSkip > 0) {
-            List<String> newLevel = new ArrayList<String>();
+            int newLevelStart = tokens.wordCount;
             for (int i = 0; i < wordsToSkip; i++) {
-               String word = words.get(i);
+               int w = tokens.word(level, i);
                // don't push noise words or type words down to the lower level
                // (does it hurt not to push type words down?)
-               if (!noiseWords.contains(word) && !isTypeWord(word)) {
-                  newLevel.add(word);
+               if (!isNoiseWord(tokens, w) && !isTypeWord(tokens, w)) {
+                  tokens.addWord(tokens.wordStarts[w], tokens.wordEnds[w]);
                }
             }
-            if (newLevel.size() > 0) {
-               levelWords.add(level, newLevel);
+            if (tokens.wordCount > newLevelStart) {
+               tokens.insertLevel(level, newLevelStart, tokens.wordCount);
                level++;
             }
          }
 
+         if (ids != null && dataSource != null) {
+            placeIndex.prefetch(ids);
+         }
+
          // didn't find any matches; log and ignore
          if (ids == null) {
-            if (errorHandler != null && !errorLogged && containsNonNoiseWords(words)) {
-               errorHandler.tokenNotFound(text, levelWords, level, removeChildIds(currentIds));
+            if (errorHandler != null && !errorLogged && containsNonNoiseWords(tokens, level)) {
+               errorHandler.tokenNotFound(text, tokens.toLevels(), level, toParentList(currentIds));
                errorLogged = true;
             }
          }
@@ -568,16 +1258,16 @@ public class Standardizer {
             // if we found previous matches, filter subplaces
             boolean ignoreTypeToken = false;
             if (currentIds != null) {
-               List<Integer> matchingIds = filterSubplaceMatches(ids, currentIds);
+               int[] matchingIds = filterSubplaceMatches(ids, currentIds);
                // didn't find any children, try skipping over the previous level
-               if (matchingIds.size() == 0 && isSkippable(currentIds)) {
+               if (matchingIds.length == 0 && isSkippable(currentIds)) {
                   // try attaching to the grandparent level if there is one
-                  if (previousIds != null && previousIds.size() > 0) {
+                  if (previousIds != null && previousIds.length > 0) {
                      matchingIds = filterSubplaceMatches(ids, previousIds);
-                     if (matchingIds.size() > 0) {
+                     if (matchingIds.length > 0) {
                         currentIds = previousIds;
                         if (errorHandler != null && !errorLogged) {
-                           errorHandler.skippingParentLevel(text, levelWords, level, removeChildIds(matchingIds));
+                           errorHandler.skippingParentLevel(text, tokens.toLevels(), level, toParentList(matchingIds));
                            errorLogged = true;
                         }
                      }
@@ -587,17 +1277,17 @@ public class Standardizer {
                      matchingIds = ids;
                      currentIds = null;
                      if (errorHandler != null && !errorLogged) {
-                        errorHandler.skippingParentLevel(text, levelWords, level, removeChildIds(matchingIds));
+                        errorHandler.skippingParentLevel(text, tokens.toLevels(), level, toParentList(matchingIds));
                         errorLogged = true;
                      }
                   }
                }
 
                // still didn't find any children; log and ignore
-               if (matchingIds.size() == 0) {
+               if (matchingIds.length == 0) {
                   ignoreTypeToken = true; // no sense matching the type if we couldn't match the name
-                  if (errorHandler != null && !errorLogged && containsNonNoiseWords(words)) {
-                     errorHandler.tokenNotFound(text, levelWords, level, removeChildIds(currentIds));
+                  if (errorHandler != null && !errorLogged && containsNonNoiseWords(tokens, level)) {
+                     errorHandler.tokenNotFound(text, tokens.toLevels(), level, toParentList(currentIds));
                      errorLogged = true;
                   }
                   ids = currentIds;
@@ -613,12 +1303,12 @@ public class Standardizer {
             }
 
             // if we still have multiple matches, filter on type
-            if (ids.size() > 1 && nameType[1] != null && !ignoreTypeToken) {
-               List<Integer> matchingIds = filterTypeMatches(nameType[1], ids);
+            if (ids.length > 1 && nameMatch.typeToken != null && !ignoreTypeToken) {
+               int[] matchingIds = filterTypeMatches(nameMatch.typeToken, ids);
                // didn't find a type match; log and ignore
-               if (matchingIds.size() == 0) {
+               if (matchingIds.length == 0) {
                   if (errorHandler != null && !errorLogged) {
-                     errorHandler.typeNotFound(text, levelWords, level, removeChildIds(ids));
+                     errorHandler.typeNotFound(text, tokens.toLevels(), level, toParentList(ids));
                      errorLogged = true;
                   }
                }
@@ -629,7 +1319,7 @@ public class Standardizer {
 
             previousIds = currentIds;
             currentIds = ids;
-            currentNameToken = nameType[0];
+            currentNameToken = nameMatch.nameToken;
          }
       }
 
@@ -637,55 +1327,73 @@ public class Standardizer {
       // if we have no matches, return empty
       if (currentIds == null) {
          // log this even if we've logged another error earlier
-         if (errorHandler != null && containsNonNoiseLevels(levelWords)) {
-            errorHandler.placeNotFound(text, levelWords);
+         if (errorHandler != null && containsNonNoiseLevels(tokens)) {
+            errorHandler.placeNotFound(text, tokens.toLevels());
          }
       }
       else if (mode == mode.REQUIRED && lastFoundLevel != 0) {
          // don't return any results if we didn't match the last level in this mode
       }
       else {
-         // if we have multiple matches and a default country, filter subplaces of the default country
-         if (currentIds.size() > 1 && defaultCountry != null && defaultCountry.length() > 0) {
-            // TODO - handle default country
+         // if we have multiple matches and a default country, keep the ones in the default country
+         // before removing children and scoring, so there are fewer to look at
+         if (currentIds.length > 1 && defaultCountry != null && defaultCountry.length() > 0) {
+            int countryId = getCountryId(defaultCountry);
+            if (countryId > 0) {
+               currentIds = filterCountryMatches(countryId, currentIds);
+            }
+         }
 
+         // likewise keep the ones near the hinted location
+         if (currentIds.length > 1 && near != null) {
+            currentIds = filterNearMatches(near, currentIds);
          }
 
          // remove children if we have the parents
-         if (currentIds.size() > 1) {
-            currentIds = removeChildIds(currentIds);
+         // (all of them are removed only if the located-in data has a cycle; keep them all then)
+         if (currentIds.length > 1) {
+            int[] parentIds = removeChildIds(currentIds);
+            if (parentIds.length > 0) {
+               currentIds = parentIds;
+            }
          }
 
          // if we have still have multiple matches, score them and return the highest-scoring
-         if (currentIds.size() > 1) {
-            for (int id : currentIds) {
-               Place p = getPlace(id);
-               results.add(new PlaceScore(p, scoreMatch(currentNameToken, p)));
+         if (currentIds.length > 1) {
+            // score by row, and create places only for the highest-scoring
+            double[] scores = new double[currentIds.length];
+            // with a location hint, nearer places win ties
+            double[] distances = new double[currentIds.length];
+            for (int i = 0; i < currentIds.length; i++) {
+               int row = getPlaceRow(currentIds[i]);
+               scores[i] = scoreMatch(currentNameToken, row);
+               if (near != null) {
+                  distances[i] = getDistanceKm(near, row);
+               }
             }
-            Collections.sort(results, new Comparator<PlaceScore>() {
-               @Override
-               public int compare(PlaceScore ps1, PlaceScore ps2) {
+            boolean[] chosen = new boolean[currentIds.length];
+            while (results.size() < numResults && results.size() < currentIds.length) {
+               int best = -1;
+               for (int i = 0; i < currentIds.length; i++) {
                   // make sort order deterministic
-                  if (ps2.getScore() == ps1.getScore()) {
-                     return ps1.getPlace().getId() < ps2.getPlace().getId() ? -1 : 1;
+                  if (!chosen[i] && (best < 0 || scores[i] > scores[best] ||
+                                     (scores[i] == scores[best] && (distances[i] < distances[best] ||
+                                      (distances[i] == distances[best] && currentIds[i] < currentIds[best]))))) {
+                     best = i;
                   }
-                  return Double.compare(ps2.getScore(), ps1.getScore());
                }
-            });
-
-            // remove lowest-scoring results
-            while (results.size() > numResults) {
-               results.remove(results.size()-1);
+               chosen[best] = true;
+               results.add(new PlaceScore(getPlace(currentIds[best]), scores[best]));
             }
 
-            if (errorHandler != null && !errorLogged) {
-               errorHandler.ambiguous(text, levelWords, currentIds, results.get(0).getPlace());
+            // no results are chosen if none were asked for
+            if (errorHandler != null && !errorLogged && results.size() > 0) {
+               errorHandler.ambiguous(text, tokens.toLevels(), toList(currentIds), results.get(0).getPlace());
                errorLogged = true;
             }
          }
          else {
-            Place p = getPlace(currentIds.get(0));
-            results.add(new PlaceScore(p, scoreMatch(currentNameToken, p)));
+            results.add(new PlaceScore(getPlace(currentIds[0]), scoreMatch(currentNameToken, getPlaceRow(currentIds[0]))));
          }
       }
 
@@ -693,15 +1401,99 @@ public class Standardizer {
       if (results.size() > 0 && mode == Mode.NEW && lastFoundLevel > 0) {
          Place p = new Place();
          p.setStandardizer(this);
-         p.setName(generatePlaceName(levelWords.get(lastFoundLevel-1)));
+         p.setName(generatePlaceName(tokens.getWords(lastFoundLevel-1)));
          p.setLocatedInId(results.get(0).getPlace().getId());
          results.clear();
          results.add(new PlaceScore(p, 0));
       }
 
+      if (metrics != null) {
+         metrics.recordMatchLatency(System.nanoTime() - startNanos);
+      }
       return results;
    }
 
+   /**
+    * Standardize many place texts at once.
+    * Texts that normalize to the same words are standardized only once, and when the index is read from a database,
+    * the words and places for the whole batch are read together.
+    * Each text gets its own copies of the result places.
+    * The error handler is called once for each distinct text.
+    * @return results for each text, in the same order as the texts
+    */
+   public List<List<PlaceScore>> standardizeBatch(List<String> texts, String defaultCountry, Mode mode, int numResults) {
+      return standardizeBatch(texts, defaultCountry, mode, numResults, errorHandler);
+   }
+
+   /**
+    * @param errorHandler called with the errors found standardizing these texts; may be null
+    */
+   public List<List<PlaceScore>> standardizeBatch(List<String> texts, String defaultCountry, Mode mode, int numResults,
+                                                  ErrorHandler errorHandler) {
+      StandardizerMetrics metrics = this.metrics;
+      Map<List<List<String>>,List<PlaceScore>> distinct = new LinkedHashMap<List<List<String>>,List<PlaceScore>>();
+      Map<List<List<String>>,String> firstTexts = new HashMap<List<List<String>>,String>();
+      List<List<List<String>>> keys = new ArrayList<List<List<String>>>(texts.size());
+      for (String text : texts) {
+         List<List<String>> levelWords = normalizer.tokenize(text);
+         if (!distinct.containsKey(levelWords)) {
+            distinct.put(levelWords, null);
+            firstTexts.put(levelWords, text);
+         }
+         keys.add(levelWords);
+      }
+
+      // fill in the results we've already cached
+      LruCache<ResultKey,List<PlaceScore>> cache = getResultCache(errorHandler);
+      List<List<List<String>>> uncached = new ArrayList<List<List<String>>>(distinct.size());
+      for (Map.Entry<List<List<String>>,List<PlaceScore>> entry : distinct.entrySet()) {
+         List<PlaceScore> cached = cache != null ? cache.get(new ResultKey(entry.getKey(), defaultCountry, null, mode, numResults)) : null;
+         if (cached != null) {
+            entry.setValue(cached);
+            if (metrics != null) {
+               metrics.recordResultCacheHit();
+            }
+         }
+         else {
+            uncached.add(entry.getKey());
+         }
+      }
+
+      // the distinct texts are tokenized again into buffers for matching
+      List<TokenBuffer> uncachedTokens = new ArrayList<TokenBuffer>(uncached.size());
+      for (List<List<String>> key : uncached) {
+         TokenBuffer tokens = new TokenBuffer();
+         normalizer.tokenize(firstTexts.get(key), tokens);
+         uncachedTokens.add(tokens);
+      }
+
+      if (dataSource != null && uncached.size() > 0) {
+         prefetchMatches(uncachedTokens);
+      }
+
+      for (int i = 0; i < uncached.size(); i++) {
+         List<List<String>> key = uncached.get(i);
+         List<PlaceScore> standardized = standardize(firstTexts.get(key), uncachedTokens.get(i), defaultCountry, null, mode, numResults, errorHandler);
+         distinct.put(key, standardized);
+         if (cache != null) {
+            cache.put(new ResultKey(key, defaultCountry, null, mode, numResults), copyResults(standardized));
+         }
+      }
+
+      List<List<PlaceScore>> results = new ArrayList<List<PlaceScore>>(texts.size());
+      for (List<List<String>> key : keys) {
+         results.add(copyResults(distinct.get(key)));
+         if (metrics != null) {
+            metrics.recordCall(mode);
+         }
+      }
+      return results;
+   }
+
+   public List<List<PlaceScore>> standardizeBatch(List<String> texts, Mode mode, int numResults) {
+      return standardizeBatch(texts, null, mode, numResults);
+   }
+
    public List<PlaceScore> standardize(String text, int numResults) {
       return standardize(text, null, Mode.BEST, numResults);
    }
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where standardizing time goes: call latencies, calls per mode, candidate-set sizes around the subplace
+ * and type filters, times a level was retried skipping more words (backoffs), and errors by ErrorHandler callback.
+ * Collected only when set on the Standardizer (or metrics=true in standardizer.properties).
+ * Latencies are recorded in nanoseconds.
+ */
+public class StandardizerMetrics implements StandardizerMetricsMBean {
+   public static final String OBJECT_NAME = "org.folg.places:type=StandardizerMetrics";
+
+   private static final int TOKEN_NOT_FOUND = 0;
+   private static final int SKIPPING_PARENT_LEVEL = 1;
+   private static final int TYPE_NOT_FOUND = 2;
+   private static final int AMBIGUOUS = 3;
+   private static final int PLACE_NOT_FOUND = 4;
+
+   // standardize calls, including cache hits
+   private final Histogram latency = new Histogram();
+   // matching each text that wasn't cached, including texts in batches
+   private final Histogram matchLatency = new Histogram();
+   private final Histogram subplaceCandidates = new Histogram();
+   private final Histogram subplaceMatches = new Histogram();
+   private final Histogram typeCandidates = new Histogram();
+   private final Histogram typeMatches = new Histogram();
+   private final AtomicLongArray modeCounts = new AtomicLongArray(Standardizer.Mode.values().length);
+   private final AtomicLong resultCacheHits = new AtomicLong();
+   private final AtomicLong backoffs = new AtomicLong();
+   private final AtomicLongArray errorCounts = new AtomicLongArray(5);
+
+   void recordCall(Standardizer.Mode mode) {
+      modeCounts.incrementAndGet(mode.ordinal());
+   }
+
+   void recordLatency(long nanos) {
+      latency.record(nanos);
+   }
+
+   void recordResultCacheHit() {
+      resultCacheHits.incrementAndGet();
+   }
+
+   void recordMatchLatency(long nanos) {
+      matchLatency.record(nanos);
+   }
+
+   void recordSubplaceFilter(int candidates, int matches) {
+      subplaceCandidates.record(candidates);
+      subplaceMatches.record(matches);
+   }
+
+   void recordTypeFilter(int candidates, int matches) {
+      typeCandidates.record(candidates);
+      typeMatches.record(matches);
+   }
+
+   void recordBackoffs(int count) {
+      if (count > 0) {
+         backoffs.addAndGet(count);
+      }
+   }
+
+   /**
+    * @return an error handler that counts the errors and passes them on to errorHandler, if it's not null
+    */
+   ErrorHandler countErrors(final ErrorHandler errorHandler) {
+      return new ErrorHandler() {
+         public void tokenNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedParentIds) {
+            errorCounts.incrementAndGet(TOKEN_NOT_FOUND);
+            if (errorHandler != null) {
+               errorHandler.tokenNotFound(text, levels, levelNumber, matchedParentIds);
+            }
+         }
+
+         public void skippingParentLevel(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
+            errorCounts.incrementAndGet(SKIPPING_PARENT_LEVEL);
+            if (errorHandler != null) {
+               errorHandler.skippingParentLevel(text, levels, levelNumber, matchedPlaceIds);
+            }
+         }
+
+         public void typeNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
+            errorCounts.incrementAndGet(TYPE_NOT_FOUND);
+            if (errorHandler != null) {
+               errorHandler.typeNotFound(text, levels, levelNumber, matchedPlaceIds);
+            }
+         }
+
+         public void ambiguous(String text, List<List<String>> levels, List<Integer> matchedPlaceIds, Place topPlace) {
+            errorCounts.incrementAndGet(AMBIGUOUS);
+            if (errorHandler != null) {
+               errorHandler.ambiguous(text, levels, matchedPlaceIds, topPlace);
+            }
+         }
+
+         public void placeNotFound(String text, List<List<String>> levels) {
+            errorCounts.incrementAndGet(PLACE_NOT_FOUND);
+            if (errorHandler != null) {
+               errorHandler.placeNotFound(text, levels);
+            }
+         }
+      };
+   }
+
+   public Histogram getLatency() {
+      return latency;
+   }
+
+   public Histogram getMatchLatency() {
+      return matchLatency;
+   }
+
+   public Histogram getSubplaceCandidates() {
+      return subplaceCandidates;
+   }
+
+   public Histogram getSubplaceMatches() {
+      return subplaceMatches;
+   }
+
+   public Histogram getTypeCandidates() {
+      return typeCandidates;
+   }
+
+   public Histogram getTypeMatches() {
+      return typeMatches;
+   }
+
+   public long getModeCount(Standardizer.Mode mode) {
+      return modeCounts.get(mode.ordinal());
+   }
+
+   public long getBestCount() {
+      return getModeCount(Standardizer.Mode.BEST);
+   }
+
+   public long getRequiredCount() {
+      return getModeCount(Standardizer.Mode.REQUIRED);
+   }
+
+   public long getNewCount() {
+      return getModeCount(Standardizer.Mode.NEW);
+   }
+
+   public long getResultCacheHits() {
+      return resultCacheHits.get();
+   }
+
+   public double getLatencyMeanMicros() {
+      return latency.getMean() / 1000;
+   }
+
+   public long getLatencyP50Micros() {
+      return latency.getValueAtPercentile(50) / 1000;
+   }
+
+   public long getLatencyP99Micros() {
+      return latency.getValueAtPercentile(99) / 1000;
+   }
+
+   public long getLatencyP999Micros() {
+      return latency.getValueAtPercentile(99.9) / 1000;
+   }
+
+   public long getLatencyMaxMicros() {
+      return latency.getMax() / 1000;
+   }
+
+   public double getMatchLatencyMeanMicros() {
+      return matchLatency.getMean() / 1000;
+   }
+
+   public long getMatchLatencyP99Micros() {
+      return matchLatency.getValueAtPercentile(99) / 1000;
+   }
+
+   public long getMatchLatencyMaxMicros() {
+      return matchLatency.getMax() / 1000;
+   }
+
+   public double getSubplaceCandidatesMean() {
+      return subplaceCandidates.getMean();
+   }
+
+   public long getSubplaceCandidatesP99() {
+      return subplaceCandidates.getValueAtPercentile(99);
+   }
+
+   public long getSubplaceCandidatesMax() {
+      return subplaceCandidates.getMax();
+   }
+
+   public double getSubplaceMatchesMean() {
+      return subplaceMatches.getMean();
+   }
+
+   public long getSubplaceMatchesMax() {
+      return subplaceMatches.getMax();
+   }
+
+   public double getTypeCandidatesMean() {
+      return typeCandidates.getMean();
+   }
+
+   public long getTypeCandidatesP99() {
+      return typeCandidates.getValueAtPercentile(99);
+   }
+
+   public long getTypeCandidatesMax() {
+      return typeCandidates.getMax();
+   }
+
+   public double getTypeMatchesMean() {
+      return typeMatches.getMean();
+   }
+
+   public long getTypeMatchesMax() {
+      return typeMatches.getMax();
+   }
+
+   public long getBackoffs() {
+      return backoffs.get();
+   }
+
+   public long getTokenNotFoundCount() {
+      return errorCounts.get(TOKEN_NOT_FOUND);
+   }
+
+   public long getSkippingParentLevelCount() {
+      return errorCounts.get(SKIPPING_PARENT_LEVEL);
+   }
+
+   public long getTypeNotFoundCount() {
+      return errorCounts.get(TYPE_NOT_FOUND);
+   }
+
+   public long getAmbiguousCount() {
+      return errorCounts.get(AMBIGUOUS);
+   }
+
+   public long getPlaceNotFoundCount() {
+      return errorCounts.get(PLACE_NOT_FOUND);
+   }
+
+   public void reset() {
+      latency.reset();
+      matchLatency.reset();
+      subplaceCandidates.reset();
+      subplaceMatches.reset();
+      typeCandidates.reset();
+      typeMatches.reset();
+      for (int i = 0; i < modeCounts.length(); i++) {
+         modeCounts.set(i, 0);
+      }
+      resultCacheHits.set(0);
+      backoffs.set(0);
+      for (int i = 0; i < errorCounts.length(); i++) {
+         errorCounts.set(i, 0);
+      }
+   }
+
+   /**
+    * @return the counts and histogram summaries by name, in a fixed order
+    */
+   public Map<String,Number> getValues() {
+      Map<String,Number> values = new LinkedHashMap<String,Number>();
+      for (Standardizer.Mode mode : Standardizer.Mode.values()) {
+         values.put("calls."+mode.name().toLowerCase(), getModeCount(mode));
+      }
+      values.put("resultCache.hits", getResultCacheHits());
+      putHistogram(values, "latency.nanos", latency);
+      putHistogram(values, "matchLatency.nanos", matchLatency);
+      putHistogram(values, "subplaceFilter.candidates", subplaceCandidates);
+      putHistogram(values, "subplaceFilter.matches", subplaceMatches);
+      putHistogram(values, "typeFilter.candidates", typeCandidates);
+      putHistogram(values, "typeFilter.matches", typeMatches);
+      values.put("backoffs", getBackoffs());
+      values.put("errors.tokenNotFound", getTokenNotFoundCount());
+      values.put("errors.skippingParentLevel", getSkippingParentLevelCount());
+      values.put("errors.typeNotFound", getTypeNotFoundCount());
+      values.put("errors.ambiguous", getAmbiguousCount());
+      values.put("errors.placeNotFound", getPlaceNotFoundCount());
+      return values;
+   }
+
+   private static void putHistogram(Map<String,Number> values, String name, Histogram histogram) {
+      values.put(name+".count", histogram.getCount());
+      values.put(name+".mean", histogram.getMean());
+      values.put(name+".p50", histogram.getValueAtPercentile(50));
+      values.put(name+".p90", histogram.getValueAtPercentile(90));
+      values.put(name+".p99", histogram.getValueAtPercentile(99));
+      values.put(name+".p999", histogram.getValueAtPercentile(99.9));
+      values.put(name+".max", histogram.getMax());
+   }
+
+   /**
+    * Register with the platform MBean server as OBJECT_NAME, replacing metrics registered earlier
+    */
+   public void registerMBean() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(this, name);
+      } catch (JMException e) {
+         throw new RuntimeException("Error registering standardizer metrics: "+e.getMessage(), e);
+      }
+   }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+/**
+ * JMX view of StandardizerMetrics; times are in microseconds
+ */
+public interface StandardizerMetricsMBean {
+   public long getBestCount();
+   public long getRequiredCount();
+   public long getNewCount();
+   public long getResultCacheHits();
+
+   public double getLatencyMeanMicros();
+   public long getLatencyP50Micros();
+   public long getLatencyP99Micros();
+   public long getLatencyP999Micros();
+   public long getLatencyMaxMicros();
+
+   public double getMatchLatencyMeanMicros();
+   public long getMatchLatencyP99Micros();
+   public long getMatchLatencyMaxMicros();
+
+   public double getSubplaceCandidatesMean();
+   public long getSubplaceCandidatesP99();
+   public long getSubplaceCandidatesMax();
+   public double getSubplaceMatchesMean();
+   public long getSubplaceMatchesMax();
+   public double getTypeCandidatesMean();
+   public long getTypeCandidatesP99();
+   public long getTypeCandidatesMax();
+   public double getTypeMatchesMean();
+   public long getTypeMatchesMax();
+
+   public long getBackoffs();
+
+   public long getTokenNotFoundCount();
+   public long getSkippingParentLevelCount();
+   public long getTypeNotFoundCount();
+   public long getAmbiguousCount();
+   public long getPlaceNotFoundCount();
+
+   public void reset();
+}
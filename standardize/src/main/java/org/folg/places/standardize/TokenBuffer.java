@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable buffer holding the words of a tokenized place text, filled by Normalizer.tokenize.
+ * The characters of all words are kept in one array; a word is a range of that array, and a level is a run of words.
+ * Reusing one buffer for many texts avoids allocating a list per level and a string per word.
+ */
+public class TokenBuffer {
+   char[] chars = new char[128];
+   int length = 0;
+   // word w is chars[wordStarts[w], wordEnds[w])
+   int[] wordStarts = new int[16];
+   int[] wordEnds = new int[16];
+   int wordCount = 0;
+   // level l is words [levelStarts[l], levelEnds[l])
+   int[] levelStarts = new int[8];
+   int[] levelEnds = new int[8];
+   int levelCount = 0;
+   private int currentWordStart = 0;
+   private int currentLevelStart = 0;
+   // set while the standardizer is matching the words in this buffer
+   boolean inUse = false;
+
+   public void clear() {
+      length = 0;
+      wordCount = 0;
+      levelCount = 0;
+      currentWordStart = 0;
+      currentLevelStart = 0;
+   }
+
+   public int getLevelCount() {
+      return levelCount;
+   }
+
+   public int getWordCount(int level) {
+      return levelEnds[level] - levelStarts[level];
+   }
+
+   public String getWord(int level, int i) {
+      int w = levelStarts[level] + i;
+      return new String(chars, wordStarts[w], wordEnds[w] - wordStarts[w]);
+   }
+
+   public List<String> getWords(int level) {
+      List<String> words = new ArrayList<String>(getWordCount(level));
+      for (int i = 0; i < getWordCount(level); i++) {
+         words.add(getWord(level, i));
+      }
+      return words;
+   }
+
+   /**
+    * @return the words of each level, as Normalizer.tokenize(String) returns them
+    */
+   public List<List<String>> toLevels() {
+      List<List<String>> levels = new ArrayList<List<String>>(levelCount);
+      for (int level = 0; level < levelCount; level++) {
+         levels.add(getWords(level));
+      }
+      return levels;
+   }
+
+   void append(char c) {
+      if (length == chars.length) {
+         char[] newChars = new char[chars.length * 2];
+         System.arraycopy(chars, 0, newChars, 0, length);
+         chars = newChars;
+      }
+      chars[length++] = c;
+   }
+
+   void append(char[] s) {
+      for (char c : s) {
+         append(c);
+      }
+   }
+
+   // end the current word, if it has any characters
+   void endWord() {
+      if (length > currentWordStart) {
+         addWord(currentWordStart, length);
+      }
+      currentWordStart = length;
+   }
+
+   // end the current level, if it has any words
+   void endLevel() {
+      endWord();
+      if (wordCount > currentLevelStart) {
+         insertLevel(levelCount, currentLevelStart, wordCount);
+      }
+      currentLevelStart = wordCount;
+   }
+
+   int addWord(int start, int end) {
+      if (wordCount == wordStarts.length) {
+         wordStarts = grow(wordStarts);
+         wordEnds = grow(wordEnds);
+      }
+      wordStarts[wordCount] = start;
+      wordEnds[wordCount] = end;
+      return wordCount++;
+   }
+
+   // insert a level made of words [start, end) before the given level
+   void insertLevel(int level, int start, int end) {
+      if (levelCount == levelStarts.length) {
+         levelStarts = grow(levelStarts);
+         levelEnds = grow(levelEnds);
+      }
+      System.arraycopy(levelStarts, level, levelStarts, level + 1, levelCount - level);
+      System.arraycopy(levelEnds, level, levelEnds, level + 1, levelCount - level);
+      levelStarts[level] = start;
+      levelEnds[level] = end;
+      levelCount++;
+   }
+
+   // index of the i'th word of the level in the word arrays
+   int word(int level, int i) {
+      return levelStarts[level] + i;
+   }
+
+   boolean wordEquals(int w, String s) {
+      int len = wordEnds[w] - wordStarts[w];
+      if (len != s.length()) {
+         return false;
+      }
+      for (int i = 0; i < len; i++) {
+         if (chars[wordStarts[w] + i] != s.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static int[] grow(int[] a) {
+      int[] b = new int[a.length * 2];
+      System.arraycopy(a, 0, b, 0, a.length);
+      return b;
+   }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Word index stored as a trie over the reversed words, so the suffixes of a text that are words
+ * can all be found in one right-to-left pass, and words within an edit distance found without a full scan.
+ *
+ * Nodes are numbered breadth-first with the root at 0; the children of node n are the nodes
+ * [childStarts[n], childStarts[n+1]), sorted by the character on the edge into them.
+ * The trie is held in int and char columns, so it can be bulk-copied from a snapshot or used in place when mapped.
+ */
+class TrieWordIndex implements WordIndex {
+   private static final int NO_WORD = -1;
+
+   private final CharBuffer labels;
+   private final IntBuffer childStarts;
+   // the word ending at each node, or NO_WORD; words are numbered in the order of their reversed characters
+   private final IntBuffer words;
+   // posting lists are held on the heap, or read from the postings column when mapped
+   private final int[][] postingLists;
+   private final IntBuffer postingOffsets;
+   private final IntBuffer postings;
+
+   private TrieWordIndex(CharBuffer labels, IntBuffer childStarts, IntBuffer words, int[][] postingLists) {
+      this.labels = labels;
+      this.childStarts = childStarts;
+      this.words = words;
+      this.postingLists = postingLists;
+      this.postingOffsets = null;
+      this.postings = null;
+   }
+
+   private TrieWordIndex(CharBuffer labels, IntBuffer childStarts, IntBuffer words,
+                         IntBuffer postingOffsets, IntBuffer postings) {
+      this.labels = labels;
+      this.childStarts = childStarts;
+      this.words = words;
+      this.postingLists = null;
+      this.postingOffsets = postingOffsets;
+      this.postings = postings;
+   }
+
+   @Override
+   public int[] lookup(String word) {
+      if (word == null) {
+         return null;
+      }
+      int node = 0;
+      for (int i = word.length()-1; i >= 0 && node >= 0; i--) {
+         node = getChild(node, word.charAt(i));
+      }
+      return node >= 0 ? getPostings(words.get(node)) : null;
+   }
+
+   @Override
+   public int[][] lookupSuffixes(CharSequence text, int[] starts) {
+      int[][] result = new int[starts.length][];
+      int s = starts.length - 1;
+      int node = 0;
+      for (int i = text.length()-1; i >= 0 && s >= 0; i--) {
+         node = getChild(node, text.charAt(i));
+         if (node < 0) {
+            break;
+         }
+         while (s >= 0 && starts[s] > i) {
+            s--;
+         }
+         while (s >= 0 && starts[s] == i) {
+            result[s] = getPostings(words.get(node));
+            s--;
+         }
+      }
+      return result;
+   }
+
+   @Override
+   public List<WordMatch> lookupFuzzy(String word, int maxDistance) {
+      List<WordMatch> matches = new ArrayList<WordMatch>();
+      if (word == null) {
+         return matches;
+      }
+      // the trie holds reversed words, so match the word reversed; edit distance doesn't change
+      int len = word.length();
+      char[] reversed = new char[len];
+      for (int i = 0; i < len; i++) {
+         reversed[i] = word.charAt(len - 1 - i);
+      }
+      // row d of the edit distance table is for the first d characters of the candidate word; only cells within
+      // maxDistance of the diagonal can be in range, so the rest are left at maxDistance+1
+      int[][] rows = new int[len + maxDistance + 1][len + 1];
+      for (int i = 0; i <= len; i++) {
+         rows[0][i] = i;
+      }
+      addFuzzyMatches(0, reversed, rows, new char[len + maxDistance], 0, maxDistance, matches);
+      return matches;
+   }
+
+   // depth-first walk computing a row of the edit distance table per node, pruning rows that are all over the limit
+   private void addFuzzyMatches(int node, char[] reversed, int[][] rows, char[] path, int depth, int maxDistance,
+                                List<WordMatch> matches) {
+      if (depth == path.length) {
+         return;
+      }
+      int len = reversed.length;
+      int[] row = rows[depth];
+      int[] childRow = rows[depth+1];
+      int j = depth + 1;
+      int lo = Math.max(1, j - maxDistance);
+      int hi = Math.min(len, j + maxDistance);
+      int end = childStarts.get(node+1);
+      for (int child = childStarts.get(node); child < end; child++) {
+         char c = labels.get(child);
+         childRow[0] = j;
+         if (lo > 1) {
+            childRow[lo-1] = maxDistance + 1;
+         }
+         int min = childRow[0];
+         for (int i = lo; i <= hi; i++) {
+            int d = Math.min(row[i] + 1, childRow[i-1] + 1);
+            childRow[i] = Math.min(d, row[i-1] + (reversed[i-1] == c ? 0 : 1));
+            min = Math.min(min, childRow[i]);
+         }
+         if (hi < len) {
+            childRow[hi+1] = maxDistance + 1;
+         }
+         if (min <= maxDistance) {
+            path[depth] = c;
+            int word = words.get(child);
+            if (word != NO_WORD && Math.abs(len - j) <= maxDistance && childRow[len] <= maxDistance) {
+               StringBuilder buf = new StringBuilder(j);
+               for (int i = depth; i >= 0; i--) {
+                  buf.append(path[i]);
+               }
+               matches.add(new WordMatch(buf.toString(), childRow[len], getPostings(word)));
+            }
+            addFuzzyMatches(child, reversed, rows, path, depth + 1, maxDistance, matches);
+         }
+      }
+   }
+
+   @Override
+   public void prefetch(Collection<String> words) {
+      // already in memory or mapped
+   }
+
+   // return the child of the node along the edge labeled c, or -1
+   private int getChild(int node, char c) {
+      int lo = childStarts.get(node);
+      int hi = childStarts.get(node+1) - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         char label = labels.get(mid);
+         if (label < c) {
+            lo = mid + 1;
+         }
+         else if (label > c) {
+            hi = mid - 1;
+         }
+         else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   private int[] getPostings(int word) {
+      if (word == NO_WORD) {
+         return null;
+      }
+      if (postingLists != null) {
+         return postingLists[word];
+      }
+      int start = postingOffsets.get(word);
+      int[] ids = new int[postingOffsets.get(word+1) - start];
+      for (int i = 0; i < ids.length; i++) {
+         ids[i] = postings.get(start + i);
+      }
+      return ids;
+   }
+
+   /**
+    * Parse place_words.csv: word|id,id,...
+    */
+   static TrieWordIndex parse(Reader reader) throws IOException {
+      Map<String,int[]> postings = new HashMap<String, int[]>();
+      BufferedReader r = new BufferedReader(reader);
+      String line;
+      while ((line = r.readLine()) != null) {
+         String[] fields = line.split("\\|");
+         String[] idStrings = fields[1].split(",");
+         int[] ids = new int[idStrings.length];
+         for (int i = 0; i < idStrings.length; i++) {
+            ids[i] = Integer.parseInt(idStrings[i]);
+         }
+         Arrays.sort(ids);
+         postings.put(fields[0], ids);
+      }
+      return build(postings);
+   }
+
+   /**
+    * Build the trie level by level; the nodes at each depth are the distinct prefixes of that length
+    * of the sorted reversed words, so the children of each node are a contiguous run of the words
+    */
+   static TrieWordIndex build(Map<String,int[]> postings) {
+      String[] keys = new String[postings.size()];
+      int k = 0;
+      for (String word : postings.keySet()) {
+         keys[k++] = new StringBuilder(word).reverse().toString();
+      }
+      Arrays.sort(keys);
+
+      int[][] postingLists = new int[keys.length][];
+      for (int i = 0; i < keys.length; i++) {
+         postingLists[i] = postings.get(new StringBuilder(keys[i]).reverse().toString());
+      }
+
+      StringBuilder labels = new StringBuilder(keys.length * 2);
+      IntList childStarts = new IntList(keys.length * 2);
+      IntList words = new IntList(keys.length * 2);
+      labels.append('\0');
+      words.add(keys.length > 0 && keys[0].length() == 0 ? 0 : NO_WORD);
+      // the range of keys under each node at the current depth, in node order
+      IntList rangeStarts = new IntList();
+      IntList rangeEnds = new IntList();
+      rangeStarts.add(0);
+      rangeEnds.add(keys.length);
+      for (int depth = 0; rangeStarts.size() > 0; depth++) {
+         IntList childRangeStarts = new IntList(rangeStarts.size() * 2);
+         IntList childRangeEnds = new IntList(rangeStarts.size() * 2);
+         for (int n = 0; n < rangeStarts.size(); n++) {
+            childStarts.add(labels.length());
+            int i = rangeStarts.get(n);
+            int end = rangeEnds.get(n);
+            // the key ending at this node sorts first
+            if (i < end && keys[i].length() == depth) {
+               i++;
+            }
+            while (i < end) {
+               char c = keys[i].charAt(depth);
+               int j = i + 1;
+               while (j < end && keys[j].charAt(depth) == c) {
+                  j++;
+               }
+               labels.append(c);
+               words.add(keys[i].length() == depth + 1 ? i : NO_WORD);
+               childRangeStarts.add(i);
+               childRangeEnds.add(j);
+               i = j;
+            }
+         }
+         rangeStarts = childRangeStarts;
+         rangeEnds = childRangeEnds;
+      }
+      childStarts.add(labels.length());
+
+      char[] labelChars = new char[labels.length()];
+      labels.getChars(0, labelChars.length, labelChars, 0);
+      return new TrieWordIndex(CharBuffer.wrap(labelChars), IntBuffer.wrap(childStarts.toArray()),
+              IntBuffer.wrap(words.toArray()), postingLists);
+   }
+
+   /**
+    * Write an index built by parse; the same csv always compiles to the same snapshot
+    */
+   void write(DataOutputStream out) throws IOException {
+      Snapshot.writeChars(out, labels);
+      Snapshot.writeInts(out, childStarts);
+      Snapshot.writeInts(out, words);
+      IntList offsets = new IntList(postingLists.length + 1);
+      IntList values = new IntList(postingLists.length * 4);
+      offsets.add(0);
+      for (int[] ids : postingLists) {
+         for (int id : ids) {
+            values.add(id);
+         }
+         offsets.add(values.size());
+      }
+      Snapshot.writeInts(out, IntBuffer.wrap(offsets.toArray()));
+      Snapshot.writeInts(out, IntBuffer.wrap(values.toArray()));
+   }
+
+   /**
+    * @param mapped if true, serve the index directly from the buffer instead of copying it onto the heap
+    */
+   static TrieWordIndex read(ByteBuffer buf, boolean mapped) {
+      CharBuffer labels = Snapshot.readChars(buf, mapped);
+      IntBuffer childStarts = Snapshot.readInts(buf, mapped);
+      IntBuffer words = Snapshot.readInts(buf, mapped);
+      IntBuffer postingOffsets = Snapshot.readInts(buf, true);
+      IntBuffer postings = Snapshot.readInts(buf, true);
+      if (mapped) {
+         return new TrieWordIndex(labels, childStarts, words, postingOffsets, postings);
+      }
+      int[][] postingLists = new int[postingOffsets.limit() - 1][];
+      for (int i = 0; i < postingLists.length; i++) {
+         postingLists[i] = new int[postingOffsets.get(i+1) - postingOffsets.get(i)];
+         postings.position(postingOffsets.get(i));
+         postings.get(postingLists[i]);
+      }
+      return new TrieWordIndex(labels, childStarts, words, postingLists);
+   }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The distinct place types, numbered so a place's types can be stored as type ids.
+ * Each type is normalized once, and the types containing each type token are remembered,
+ * so checking whether a place has a type matching a token is a bit test rather than normalizing and searching strings.
+ */
+class TypeTable {
+   // type tokens are built from type words, so there are few of them; this just bounds the cache
+   private static final int MAX_CACHED_TOKENS = 10000;
+
+   // the types containing a token, as of when there were typeCount types
+   private static class Matches {
+      private final int typeCount;
+      private final BitSet typeIds;
+
+      Matches(int typeCount, BitSet typeIds) {
+         this.typeCount = typeCount;
+         this.typeIds = typeIds;
+      }
+   }
+
+   private final Normalizer normalizer = Normalizer.getInstance();
+   private final List<String> types = new ArrayList<String>();
+   private final List<String> normalizedTypes = new ArrayList<String>();
+   private final Map<String,Integer> typeIds = new HashMap<String,Integer>();
+   private final ConcurrentHashMap<String,Matches> matches = new ConcurrentHashMap<String,Matches>();
+
+   /**
+    * @return the id of the type, adding it if it's new
+    */
+   synchronized int getTypeId(String type) {
+      Integer typeId = typeIds.get(type);
+      if (typeId == null) {
+         typeId = types.size();
+         types.add(type);
+         normalizedTypes.add(normalizer.normalize(type));
+         typeIds.put(type, typeId);
+      }
+      return typeId;
+   }
+
+   synchronized String getType(int typeId) {
+      return types.get(typeId);
+   }
+
+   synchronized int size() {
+      return types.size();
+   }
+
+   /**
+    * @param token normalized type token
+    * @return true if the normalized type contains the token
+    */
+   boolean matches(int typeId, String token) {
+      Matches m = matches.get(token);
+      // types added since the token was cached haven't been checked yet
+      if (m == null || typeId >= m.typeCount) {
+         m = getMatches(token);
+         if (matches.size() >= MAX_CACHED_TOKENS) {
+            matches.clear();
+         }
+         matches.put(token, m);
+      }
+      return m.typeIds.get(typeId);
+   }
+
+   private synchronized Matches getMatches(String token) {
+      BitSet ids = new BitSet(normalizedTypes.size());
+      for (int i = 0; i < normalizedTypes.size(); i++) {
+         if (normalizedTypes.get(i).indexOf(token) >= 0) {
+            ids.set(i);
+         }
+      }
+      return new Matches(normalizedTypes.size(), ids);
+   }
+}
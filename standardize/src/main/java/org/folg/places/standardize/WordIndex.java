@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps a word (the concatenated, normalized words of a place name) to the ids of the places having that name
+ */
+interface WordIndex {
+   /**
+    * @param word word to look up
+    * @return ids of matching places in ascending order (callers must not modify), or null if the word is not found
+    */
+   public int[] lookup(String word);
+
+   /**
+    * Look up the suffixes of a text starting at each of the given offsets
+    * @param text text whose suffixes to look up
+    * @param starts offsets of the suffixes in ascending order
+    * @return the ids of the places matching each suffix, or null for suffixes that are not found
+    */
+   public int[][] lookupSuffixes(CharSequence text, int[] starts);
+
+   /**
+    * @param word word to look up
+    * @param maxDistance maximum edit distance (insertions, deletions and substitutions) from the word
+    * @return words in the index within maxDistance of the word; indexes that can't search by distance return only an exact match
+    */
+   public List<WordMatch> lookupFuzzy(String word, int maxDistance);
+
+   /**
+    * Hint that the words are about to be looked up, so indexes that read from elsewhere can read them together
+    */
+   public void prefetch(Collection<String> words);
+}
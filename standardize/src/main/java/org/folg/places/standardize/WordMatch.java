@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.standardize;
+
+/**
+ * A word found by an edit-distance lookup, with the ids of the places having that name
+ */
+class WordMatch {
+   private final String word;
+   private final int distance;
+   private final int[] ids;
+
+   WordMatch(String word, int distance, int[] ids) {
+      this.word = word;
+      this.distance = distance;
+      this.ids = ids;
+   }
+
+   String getWord() {
+      return word;
+   }
+
+   int getDistance() {
+      return distance;
+   }
+
+   /**
+    * @return ids of matching places in ascending order; callers must not modify
+    */
+   int[] getIds() {
+      return ids;
+   }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.standardize;
+
+import java.util.Map;
+
+/**
+ * Read-only map from words to values that can be looked up by a range of a char array,
+ * so the words in a TokenBuffer can be looked up without creating strings.
+ */
+class WordTable<V> {
+   private final String[] keys;
+   private final Object[] values;
+   private final int mask;
+
+   WordTable(Map<String,V> entries) {
+      int capacity = 16;
+      while (capacity < entries.size() * 2) {
+         capacity *= 2;
+      }
+      keys = new String[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+      for (Map.Entry<String,V> entry : entries.entrySet()) {
+         int i = spread(entry.getKey().hashCode()) & mask;
+         while (keys[i] != null) {
+            i = (i + 1) & mask;
+         }
+         keys[i] = entry.getKey();
+         values[i] = entry.getValue();
+      }
+   }
+
+   private static int spread(int h) {
+      return h ^ (h >>> 16);
+   }
+
+   /**
+    * @return the value for the word chars[start, end), or null
+    */
+   @SuppressWarnings("unchecked")
+   V get(char[] chars, int start, int end) {
+      // same hash as String.hashCode
+      int h = 0;
+      for (int j = start; j < end; j++) {
+         h = 31 * h + chars[j];
+      }
+      int i = spread(h) & mask;
+      String key;
+      while ((key = keys[i]) != null) {
+         if (matches(key, chars, start, end)) {
+            return (V)values[i];
+         }
+         i = (i + 1) & mask;
+      }
+      return null;
+   }
+
+   V get(TokenBuffer tokens, int w) {
+      return get(tokens.chars, tokens.wordStarts[w], tokens.wordEnds[w]);
+   }
+
+   private static boolean matches(String key, char[] chars, int start, int end) {
+      if (key.length() != end - start) {
+         return false;
+      }
+      for (int j = start; j < end; j++) {
+         if (key.charAt(j - start) != chars[j]) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
@@ -41,6 +41,9 @@ public class AnalyzeMatches {
    @Option(name = "-o", required = true, usage = "counts file out")
    private File countsOut = null;
 
+   @Option(name = "-po", required = false, usage = "place counts file out")
+   private File placeCountsOut = null;
+
    private Standardizer standardizer;
 
    static class MatchCount {
@@ -63,6 +66,7 @@ public class AnalyzeMatches {
    private void doMain() throws SAXParseException, IOException {
       BufferedReader reader = new BufferedReader(new FileReader(placesIn));
       Map<String,MatchCount> matchCounts = new TreeMap<String, MatchCount>();
+      CountsCollector placeCounts = new CountsCollector();
 
       // standardize all places + calculate matchCounts
       while (reader.ready()) {
@@ -88,6 +92,7 @@ public class AnalyzeMatches {
                matchCounts.put(countryName, matchCount);
             }
             matchCount.levelCounts[Math.min(Standardizer.MAX_LEVELS,level)-1]++;
+            placeCounts.add(String.valueOf(p.getId()));
          }
       }
 
@@ -106,6 +111,13 @@ public class AnalyzeMatches {
       }
 
       writer.close();
+
+      // generate the place counts file: place id<tab>count
+      if (placeCountsOut != null) {
+         writer = new PrintWriter(placeCountsOut);
+         placeCounts.writeSorted(false, 1, writer);
+         writer.close();
+      }
    }
 
    public static void main(String[] args) throws SAXParseException, IOException {
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.folg.places.tools;
+
+import org.folg.places.standardize.Snapshot;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+
+/**
+ * Compiles places.csv, place_words.csv and standardizer.properties into a binary snapshot.
+ * Put the snapshot on the classpath as places.snapshot and the Standardizer will load it instead of the csv files.
+ */
+public class CompileSnapshot {
+   @Option(name = "-p", required = true, usage = "places.csv in")
+   private File placesIn;
+
+   @Option(name = "-w", required = true, usage = "place_words.csv in")
+   private File placeWordsIn;
+
+   @Option(name = "-s", required = false, usage = "standardizer.properties in; default is the one on the classpath")
+   private File propertiesIn = null;
+
+   @Option(name = "-o", required = true, usage = "snapshot out")
+   private File snapshotOut;
+
+   private void doMain() throws IOException {
+      Reader propertiesReader = propertiesIn != null ?
+              new InputStreamReader(new FileInputStream(propertiesIn), "UTF8") :
+              new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8");
+      Reader wordsReader = new InputStreamReader(new FileInputStream(placeWordsIn), "UTF8");
+      Reader placesReader = new InputStreamReader(new FileInputStream(placesIn), "UTF8");
+      OutputStream out = new FileOutputStream(snapshotOut);
+
+      long startMillis = System.currentTimeMillis();
+      try {
+         Snapshot.write(propertiesReader, wordsReader, placesReader, out);
+      }
+      finally {
+         propertiesReader.close();
+         wordsReader.close();
+         placesReader.close();
+         out.close();
+      }
+      long endMillis = System.currentTimeMillis();
+      System.out.println("Snapshot size (bytes)="+snapshotOut.length()+" time (millis)="+(endMillis-startMillis));
+   }
+
+   public static void main(String[] args) throws IOException {
+      CompileSnapshot self = new CompileSnapshot();
+      CmdLineParser parser = new CmdLineParser(self);
+      try {
+         parser.parseArgument(args);
+         self.doMain();
+      } catch (CmdLineException e) {
+         System.err.println(e.getMessage());
+         parser.printUsage(System.err);
+      }
+   }
+}
@@ -25,14 +25,17 @@ import org.kohsuke.args4j.Option;
 import org.xml.sax.SAXParseException;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 /**
  * User: dallan
  * Date: 1/11/12
  */
-public class StandardizePlaces implements ErrorHandler {
+public class StandardizePlaces {
    private static Logger logger = Logger.getLogger("org.folg.places.tools");
 
    @Option(name = "-i", required = true, usage = "places file in")
@@ -68,7 +71,13 @@ public class StandardizePlaces implements ErrorHandler {
    @Option(name = "-so", required = false, usage = "skipped levels out")
    private File skippedOut = null;
 
+   @Option(name = "-threads", required = false, usage = "number of threads to standardize on; default is 1")
+   private int numThreads = 1;
+
+   private static final int CHUNK_SIZE = 1000;
+
    private Standardizer standardizer;
+   private PrintWriter placesWriter = null;
    private PrintWriter ambiguousWriter = null;
    private PrintWriter missingWriter = null;
    private PrintWriter phraseWriter = null;
@@ -78,7 +87,6 @@ public class StandardizePlaces implements ErrorHandler {
 
    public StandardizePlaces() {
       standardizer = Standardizer.getInstance();
-      standardizer.setErrorHandler(this);
    }
 
    private String generatePlaceName(List<List<String>> levels, int levelNumber) {
@@ -111,65 +119,142 @@ public class StandardizePlaces implements ErrorHandler {
       return false;
    }
 
-   @Override
-   public void tokenNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedParentIds) {
-      List<String> words = levels.get(levelNumber);
-
-      // log only tokens without numbers
-      if (words.size() > 0 && !hasDigit(words)) {
-         String levelName = standardizer.generatePlaceName(words);
-         if (missingWriter != null && matchedParentIds != null && matchedParentIds.size() == 1) {
-            // we don't want to create places for every single church and hospital
-            if (!levelName.endsWith(" Church") && !levelName.endsWith(" Hospital")) {
-               String fullName = levelName +", "+
-                                 standardizer.getPlace(matchedParentIds.get(0)).getFullName();
-               missingWriter.println(text+" | "+fullName);
+   private static StringWriter newBuffer(PrintWriter writer) {
+      return writer != null ? new StringWriter() : null;
+   }
+
+   private static PrintWriter newWriter(StringWriter buffer) {
+      return buffer != null ? new PrintWriter(buffer) : null;
+   }
+
+   private static void append(PrintWriter writer, StringWriter buffer) {
+      if (writer != null) {
+         writer.write(buffer.toString());
+      }
+   }
+
+   /**
+    * A chunk of input lines, standardized on a worker thread.
+    * Results and problems are buffered so they can be written out in input order.
+    */
+   private class Chunk implements Callable<Chunk>, ErrorHandler {
+      private final List<String> lines;
+      private final StringWriter places = new StringWriter();
+      private final StringWriter ambiguous = newBuffer(ambiguousWriter);
+      private final StringWriter missing = newBuffer(missingWriter);
+      private final StringWriter phrase = newBuffer(phraseWriter);
+      private final StringWriter type = newBuffer(typeWriter);
+      private final StringWriter notFound = newBuffer(notFoundWriter);
+      private final StringWriter skipped = newBuffer(skippedWriter);
+      private final PrintWriter placesOut = new PrintWriter(places);
+      private final PrintWriter ambiguousOut = newWriter(ambiguous);
+      private final PrintWriter missingOut = newWriter(missing);
+      private final PrintWriter phraseOut = newWriter(phrase);
+      private final PrintWriter typeOut = newWriter(type);
+      private final PrintWriter notFoundOut = newWriter(notFound);
+      private final PrintWriter skippedOut = newWriter(skipped);
+
+      Chunk(List<String> lines) {
+         this.lines = lines;
+      }
+
+      @Override
+      public Chunk call() {
+         for (String nextLine : lines) {
+            if (numResults == 0) {
+               List<Standardizer.PlaceScore> results = standardizer.standardize(nextLine, null, Standardizer.Mode.BEST, 1, this);
+               Place p = results.size() > 0 ? results.get(0).getPlace() : null;
+               if (p != null) {
+                  placesOut.println(nextLine + " | "+ p.getFullName());
+                  printAlsoLocatedIns(placesOut, p);
+               }
+            }
+            else {
+               List<Standardizer.PlaceScore> results = standardizer.standardize(nextLine, null, Standardizer.Mode.BEST, numResults, this);
+               placesOut.println(nextLine);
+               for (Standardizer.PlaceScore ps : results) {
+                  placesOut.println("\t" + ps.getPlace().getFullName());
+                  printAlsoLocatedIns(placesOut, ps.getPlace());
+               }
             }
          }
-         if (phraseWriter != null) {
-            phraseWriter.println(levelName);
+         return this;
+      }
+
+      /**
+       * Append the buffered output to the output files
+       */
+      void write() {
+         placesOut.flush();
+         append(placesWriter, places);
+         append(ambiguousWriter, ambiguous);
+         append(missingWriter, missing);
+         append(phraseWriter, phrase);
+         append(typeWriter, type);
+         append(notFoundWriter, notFound);
+         append(skippedWriter, skipped);
+      }
+
+      @Override
+      public void tokenNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedParentIds) {
+         List<String> words = levels.get(levelNumber);
+
+         // log only tokens without numbers
+         if (words.size() > 0 && !hasDigit(words)) {
+            String levelName = standardizer.generatePlaceName(words);
+            if (missingOut != null && matchedParentIds != null && matchedParentIds.size() == 1) {
+               // we don't want to create places for every single church and hospital
+               if (!levelName.endsWith(" Church") && !levelName.endsWith(" Hospital")) {
+                  String fullName = levelName +", "+
+                                    standardizer.getPlace(matchedParentIds.get(0)).getFullName();
+                  missingOut.println(text+" | "+fullName);
+               }
+            }
+            if (phraseOut != null) {
+               phraseOut.println(levelName);
+            }
          }
       }
-   }
 
-   @Override
-   public void skippingParentLevel(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
-      List<String> words = levels.get(levelNumber);
-
-      // log only children without numbers
-      if (words.size() > 0 && !hasDigit(words)) {
-         // build place with all levels from here up
-         String hereUp = generatePlaceName(levels, levelNumber);
-         // just write out the first place in the list
-         Place p = standardizer.getPlace(matchedPlaceIds.get(0));
-         skippedWriter.println(hereUp+" | "+p.getFullName());
+      @Override
+      public void skippingParentLevel(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
+         List<String> words = levels.get(levelNumber);
+
+         // log only children without numbers
+         if (skippedOut != null && words.size() > 0 && !hasDigit(words)) {
+            // build place with all levels from here up
+            String hereUp = generatePlaceName(levels, levelNumber);
+            // just write out the first place in the list
+            Place p = standardizer.getPlace(matchedPlaceIds.get(0));
+            skippedOut.println(hereUp+" | "+p.getFullName());
+         }
       }
-   }
 
-   @Override
-   public void typeNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
-      if (typeWriter != null) {
-         typeWriter.println(text);
+      @Override
+      public void typeNotFound(String text, List<List<String>> levels, int levelNumber, List<Integer> matchedPlaceIds) {
+         if (typeOut != null) {
+            typeOut.println(text);
+         }
       }
-   }
 
-   @Override
-   public void ambiguous(String text, List<List<String>> levels, List<Integer> matchedPlaceIds, Place topPlace) {
-      if (ambiguousWriter != null) {
-         ambiguousWriter.println(text.replaceFirst("^[, <?]+", "").replaceFirst("[, >?]+$",""));
+      @Override
+      public void ambiguous(String text, List<List<String>> levels, List<Integer> matchedPlaceIds, Place topPlace) {
+         if (ambiguousOut != null) {
+            ambiguousOut.println(text.replaceFirst("^[, <?]+", "").replaceFirst("[, >?]+$",""));
+         }
       }
-   }
 
-   @Override
-   public void placeNotFound(String text, List<List<String>> levels) {
-      if (notFoundWriter != null) {
-         notFoundWriter.println(text);
+      @Override
+      public void placeNotFound(String text, List<List<String>> levels) {
+         if (notFoundOut != null) {
+            notFoundOut.println(text);
+         }
       }
    }
 
-   private void doMain() throws SAXParseException, IOException {
+   private void doMain() throws SAXParseException, IOException, InterruptedException, ExecutionException {
       BufferedReader bufferedReader = new BufferedReader(new FileReader(placesIn));
-      PrintWriter placesWriter = placesOut != null ? new PrintWriter(placesOut) : new PrintWriter(System.out);
+      placesWriter = placesOut != null ? new PrintWriter(placesOut) : new PrintWriter(System.out);
       if (ambiguousOut != null) {
          ambiguousWriter = new PrintWriter(ambiguousOut);
       }
@@ -189,78 +274,96 @@ public class StandardizePlaces implements ErrorHandler {
          skippedWriter = new PrintWriter(skippedOut);
       }
 
-      int lineCount = 0;
-      long startMillis = System.currentTimeMillis();
-      while (bufferedReader.ready()) {
-         String nextLine = bufferedReader.readLine();
-
-         if (numResults == 0) {
-            Place p = standardizer.standardize(nextLine);
-            if (p != null) {
-               placesWriter.println(nextLine + " | "+ p.getFullName());
-               printAlsoLocatedIns(placesWriter, p);
+      ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+      try {
+         // reorder buffer: chunks in input order; bounded so the reader can't get too far ahead of the writer
+         LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+         int maxPending = numThreads * 4;
+
+         int lineCount = 0;
+         long startMillis = System.currentTimeMillis();
+         List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+         String nextLine;
+         while ((maxPlaces == 0 || lineCount < maxPlaces) && (nextLine = bufferedReader.readLine()) != null) {
+            lines.add(nextLine);
+            if (lineCount % 100000 == 0) {
+               System.out.print(".");
             }
-         }
-         else {
-            List<Standardizer.PlaceScore> results = standardizer.standardize(nextLine, numResults);
-            placesWriter.println(nextLine);
-            for (Standardizer.PlaceScore ps : results) {
-               placesWriter.println("\t" + ps.getPlace().getFullName());
-               printAlsoLocatedIns(placesWriter, ps.getPlace());
+            lineCount++;
+            if (lines.size() == CHUNK_SIZE) {
+               submit(executor, new Chunk(lines), pending);
+               lines = new ArrayList<String>(CHUNK_SIZE);
+               while (pending.size() > maxPending || (pending.size() > 0 && pending.getFirst().isDone())) {
+                  pending.removeFirst().get().write();
+               }
             }
          }
-
-         if (lineCount % 100000 == 0) {
-            System.out.print(".");
+         if (lines.size() > 0) {
+            submit(executor, new Chunk(lines), pending);
          }
-         if (++lineCount == maxPlaces) {
-            break;
+         while (pending.size() > 0) {
+            pending.removeFirst().get().write();
          }
+         long endMillis = System.currentTimeMillis();
+         System.out.println("Number of places="+lineCount+" time (seconds)="+(endMillis-startMillis)/1000+
+                 " places/second="+(lineCount * 1000L / Math.max(1, endMillis-startMillis)));
       }
-      long endMillis = System.currentTimeMillis();
-      System.out.println("Number of places="+lineCount+" time (seconds)="+(endMillis-startMillis)/1000);
-
-      bufferedReader.close();
-      placesWriter.close();
+      finally {
+         // on success every chunk has been written; on failure this stops the rest so the JVM can exit
+         if (executor != null) {
+            executor.shutdownNow();
+         }
+         bufferedReader.close();
+         placesWriter.close();
 
-      if (ambiguousWriter != null) {
-         ambiguousWriter.close();
-      }
-      if (missingWriter != null) {
-         missingWriter.close();
-      }
-      if (phraseWriter != null) {
-         phraseWriter.close();
-      }
-      if (typeWriter != null) {
-         typeWriter.close();
+         if (ambiguousWriter != null) {
+            ambiguousWriter.close();
+         }
+         if (missingWriter != null) {
+            missingWriter.close();
+         }
+         if (phraseWriter != null) {
+            phraseWriter.close();
+         }
+         if (typeWriter != null) {
+            typeWriter.close();
+         }
+         if (notFoundWriter != null) {
+            notFoundWriter.close();
+         }
+         if (skippedWriter != null) {
+            skippedWriter.close();
+         }
       }
-      if (notFoundWriter != null) {
-         notFoundWriter.close();
+   }
+
+   // run the chunk on the pool, or right here if there's no pool
+   private static void submit(ExecutorService executor, Chunk chunk, LinkedList<Future<Chunk>> pending) {
+      if (executor != null) {
+         pending.addLast(executor.submit(chunk));
       }
-      if (skippedWriter != null) {
-         skippedWriter.close();
+      else {
+         FutureTask<Chunk> task = new FutureTask<Chunk>(chunk);
+         task.run();
+         pending.addLast(task);
       }
    }
 
    private void printAlsoLocatedIns(PrintWriter placesWriter, Place p) {
-      int[] alsoLocatedInIds = p.getAlsoLocatedInIds();
-      if ((printAlsoLocatedIns) && (alsoLocatedInIds != null) && (alsoLocatedInIds.length > 0)) {
-         StringBuffer alsoLocatedStrs = new StringBuffer();
-         for (int indx = 0; indx < alsoLocatedInIds.length; indx++) {
-            int alsoLocatedInId = alsoLocatedInIds[indx];
-            Place alsoLocatedPlace = standardizer.getPlace(alsoLocatedInId);
+      String[] alsoLocatedInFullNames = printAlsoLocatedIns ? p.getAlsoLocatedInFullNames() : null;
+      if (alsoLocatedInFullNames != null) {
+         StringBuilder alsoLocatedStrs = new StringBuilder();
+         for (String fullName : alsoLocatedInFullNames) {
             if (alsoLocatedStrs.length() > 0) {
                alsoLocatedStrs.append(", ");
             }
-            alsoLocatedStrs.append(alsoLocatedPlace.getFullName());
+            alsoLocatedStrs.append(fullName);
          }
          placesWriter.println("\talso located in = " + alsoLocatedStrs);
-
       }
    }
 
-   public static void main(String[] args) throws SAXParseException, IOException {
+   public static void main(String[] args) throws SAXParseException, IOException, InterruptedException, ExecutionException {
       StandardizePlaces self = new StandardizePlaces();
       CmdLineParser parser = new CmdLineParser(self);
       try {
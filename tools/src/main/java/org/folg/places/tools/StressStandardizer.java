@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.folg.places.tools;
+
+import org.folg.places.standardize.Standardizer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Standardizes the same places on 1, 2, 4, ... threads sharing one Standardizer,
+ * reports the throughput at each thread count, and checks every thread gets the single-threaded results.
+ */
+public class StressStandardizer {
+   @Option(name = "-i", required = true, usage = "places file in")
+   private File placesIn;
+
+   @Option(name = "-n", required = false, usage = "number of places to standardize")
+   private int maxPlaces = 0;
+
+   @Option(name = "-t", required = false, usage = "maximum number of threads; default is the number of processors")
+   private int maxThreads = Runtime.getRuntime().availableProcessors();
+
+   @Option(name = "-r", required = false, usage = "number of times each thread standardizes the places")
+   private int repeat = 1;
+
+   private Standardizer standardizer;
+   private List<String> places;
+   private List<String> expected;
+
+   private List<String> readPlaces() throws IOException {
+      List<String> places = new ArrayList<String>();
+      BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(placesIn), "UTF8"));
+      try {
+         String line;
+         while ((line = bufferedReader.readLine()) != null) {
+            places.add(line);
+            if (places.size() == maxPlaces) {
+               break;
+            }
+         }
+      }
+      finally {
+         bufferedReader.close();
+      }
+      return places;
+   }
+
+   private String standardize(String text) {
+      List<Standardizer.PlaceScore> results = standardizer.standardize(text, null, Standardizer.Mode.BEST, 1, null);
+      return results.size() > 0 ? results.get(0).getPlace().getFullName() : "";
+   }
+
+   // start all threads at once and return the elapsed time
+   private long run(int numThreads, final AtomicInteger mismatches) throws InterruptedException {
+      Thread[] threads = new Thread[numThreads];
+      for (int t = 0; t < numThreads; t++) {
+         // each thread starts at a different place so they aren't all working on the same text
+         final int offset = t * places.size() / numThreads;
+         threads[t] = new Thread() {
+            @Override
+            public void run() {
+               for (int r = 0; r < repeat; r++) {
+                  for (int i = 0; i < places.size(); i++) {
+                     int j = (i + offset) % places.size();
+                     if (!standardize(places.get(j)).equals(expected.get(j))) {
+                        mismatches.incrementAndGet();
+                     }
+                  }
+               }
+            }
+         };
+      }
+      long startMillis = System.currentTimeMillis();
+      for (Thread thread : threads) {
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      return System.currentTimeMillis() - startMillis;
+   }
+
+   private void doMain() throws IOException, InterruptedException {
+      standardizer = Standardizer.getInstance();
+      places = readPlaces();
+      expected = new ArrayList<String>(places.size());
+      for (String place : places) {
+         expected.add(standardize(place));
+      }
+      // warm up
+      run(1, new AtomicInteger());
+
+      double baseRate = 0.0;
+      for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+         AtomicInteger mismatches = new AtomicInteger();
+         long millis = run(numThreads, mismatches);
+         double rate = (double)numThreads * repeat * places.size() * 1000 / Math.max(1, millis);
+         if (numThreads == 1) {
+            baseRate = rate;
+         }
+         System.out.println(String.format("threads=%d places/second=%.0f speedup=%.2f mismatches=%d",
+                 numThreads, rate, rate / baseRate, mismatches.get()));
+      }
+   }
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      StressStandardizer self = new StressStandardizer();
+      CmdLineParser parser = new CmdLineParser(self);
+      try {
+         parser.parseArgument(args);
+         self.doMain();
+      } catch (CmdLineException e) {
+         System.err.println(e.getMessage());
+         parser.printUsage(System.err);
+      }
+   }
+}
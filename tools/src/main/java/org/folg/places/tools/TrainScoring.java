@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.folg.places.tools;
+
+import org.folg.places.standardize.Standardizer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Learns the scoring model from the counts written by AnalyzeMatches.
+ *
+ * The weight for a level in a country is the log of the smoothed probability that a match is a particular place
+ * at that level in that country: P(country) * P(level|country) / (number of places at that level in that country).
+ * P(country) is add-one smoothed, and P(level|country) is pulled toward the overall level distribution
+ * so countries with few matches get weights close to the average.
+ * Countries without matches get the weights for a count of zero and the average number of places at each level.
+ * Weights are shifted so the smallest is 1, keeping them positive like the hand-set weights.
+ *
+ * If place counts are given, a place matched more often than the average place at its level in its country
+ * gets a prior of the log of the ratio, capped so popularity can't outweigh everything else.
+ *
+ * Point the scoringModel property in standardizer.properties at the output to use it.
+ */
+public class TrainScoring {
+   private static final int LEVELS = Standardizer.MAX_LEVELS;
+
+   @Option(name = "-i", required = true, usage = "counts file in, from AnalyzeMatches -o")
+   private File countsIn;
+
+   @Option(name = "-places", required = true, usage = "places.csv in")
+   private File placesIn;
+
+   @Option(name = "-pc", required = false, usage = "place counts file in, from AnalyzeMatches -po")
+   private File placeCountsIn = null;
+
+   @Option(name = "-o", required = true, usage = "scoring model out")
+   private File modelOut;
+
+   @Option(name = "-scale", required = false, usage = "score per unit of log probability; default 1")
+   private double scale = 1.0;
+
+   @Option(name = "-alpha", required = false, usage = "matches' worth of the overall level distribution added to each country; default 10")
+   private double alpha = 10.0;
+
+   @Option(name = "-minPlaceCount", required = false, usage = "only give priors to places matched at least this many times; default 3")
+   private int minPlaceCount = 3;
+
+   @Option(name = "-maxPlacePrior", required = false, usage = "largest place prior; default 5")
+   private double maxPlacePrior = 5.0;
+
+   private void doMain() throws IOException {
+      // read the level counts by country; AnalyzeMatches lines are country name,country id,total,level counts
+      Map<Integer,long[]> countryCounts = new TreeMap<Integer,long[]>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(countsIn), "UTF8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+         String[] fields = line.split(",");
+         if (fields.length < LEVELS + 3) {
+            continue;
+         }
+         // the country name may contain commas, so count fields from the end
+         int countryField = fields.length - LEVELS - 2;
+         int countryId = Integer.parseInt(fields[countryField]);
+         long[] counts = countryCounts.get(countryId);
+         if (counts == null) {
+            counts = new long[LEVELS];
+            countryCounts.put(countryId, counts);
+         }
+         for (int i = 0; i < LEVELS; i++) {
+            counts[i] += Long.parseLong(fields[countryField + 2 + i]);
+         }
+      }
+      reader.close();
+
+      // read the place counts (place id<tab>count)
+      Map<Integer,Long> placeCounts = new HashMap<Integer,Long>();
+      if (placeCountsIn != null) {
+         reader = new BufferedReader(new InputStreamReader(new FileInputStream(placeCountsIn), "UTF8"));
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length == 2) {
+               placeCounts.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1]));
+            }
+         }
+         reader.close();
+      }
+
+      // count the places at each level in each country, and note the country and level of the counted places
+      // places.csv lines are id|name|alt names|types|located-in id|also-located-in ids|level|country|...
+      Map<Integer,long[]> countryPlaces = new HashMap<Integer,long[]>();
+      Map<Integer,int[]> placeCountryLevels = new HashMap<Integer,int[]>();
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(placesIn), "UTF8"));
+      while ((line = reader.readLine()) != null) {
+         String[] fields = line.split("\\|");
+         int placeId = Integer.parseInt(fields[0]);
+         int level = Math.min(LEVELS, Integer.parseInt(fields[6])) - 1;
+         int countryId = Integer.parseInt(fields[7]);
+         long[] places = countryPlaces.get(countryId);
+         if (places == null) {
+            places = new long[LEVELS];
+            countryPlaces.put(countryId, places);
+         }
+         places[level]++;
+         if (placeCounts.containsKey(placeId)) {
+            placeCountryLevels.put(placeId, new int[] {countryId, level});
+         }
+      }
+      reader.close();
+
+      long total = 0;
+      long[] levelTotals = new long[LEVELS];
+      for (long[] counts : countryCounts.values()) {
+         for (int i = 0; i < LEVELS; i++) {
+            levelTotals[i] += counts[i];
+            total += counts[i];
+         }
+      }
+      if (total == 0) {
+         throw new IOException("No matches in "+countsIn);
+      }
+      double[] levelDistribution = new double[LEVELS];
+      for (int i = 0; i < LEVELS; i++) {
+         levelDistribution[i] = (levelTotals[i] + 1.0) / (total + LEVELS);
+      }
+      double[] averagePlaces = new double[LEVELS];
+      for (long[] places : countryPlaces.values()) {
+         for (int i = 0; i < LEVELS; i++) {
+            averagePlaces[i] += (double)places[i] / countryPlaces.size();
+         }
+      }
+
+      // fit the weights, then shift them so the smallest is 1
+      double countryDenominator = total + countryCounts.size() + 1.0;
+      double[] defaultWeights = fitWeights(new long[LEVELS], averagePlaces, levelDistribution, countryDenominator);
+      Map<Integer,double[]> countryWeights = new TreeMap<Integer,double[]>();
+      double min = min(defaultWeights);
+      for (Map.Entry<Integer,long[]> entry : countryCounts.entrySet()) {
+         long[] places = countryPlaces.get(entry.getKey());
+         double[] placesPerLevel = new double[LEVELS];
+         for (int i = 0; i < LEVELS; i++) {
+            placesPerLevel[i] = places != null ? places[i] : 0;
+         }
+         double[] weights = fitWeights(entry.getValue(), placesPerLevel, levelDistribution, countryDenominator);
+         countryWeights.put(entry.getKey(), weights);
+         min = Math.min(min, min(weights));
+      }
+      double offset = 1.0 - min;
+
+      // a place's prior is the log of how many times more often it was matched than the average place
+      // at its level in its country
+      Map<Integer,Double> placePriors = new TreeMap<Integer,Double>();
+      for (Map.Entry<Integer,Long> entry : placeCounts.entrySet()) {
+         long count = entry.getValue();
+         int[] countryLevel = placeCountryLevels.get(entry.getKey());
+         if (count < minPlaceCount || countryLevel == null || !countryCounts.containsKey(countryLevel[0])) {
+            continue;
+         }
+         double average = (double)countryCounts.get(countryLevel[0])[countryLevel[1]] /
+                          countryPlaces.get(countryLevel[0])[countryLevel[1]];
+         double prior = Math.min(maxPlacePrior, scale * Math.log((count + 1.0) / (average + 1.0)));
+         if (prior >= 0.0001) {
+            placePriors.put(entry.getKey(), prior);
+         }
+      }
+
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(modelOut), "UTF8"));
+      writer.println("# learned by TrainScoring from "+total+" matches in "+countryCounts.size()+" countries");
+      writer.println("level|"+format(defaultWeights, offset));
+      for (Map.Entry<Integer,double[]> entry : countryWeights.entrySet()) {
+         writer.println("country|"+entry.getKey()+"|"+format(entry.getValue(), offset));
+      }
+      for (Map.Entry<Integer,Double> entry : placePriors.entrySet()) {
+         writer.println("place|"+entry.getKey()+"|"+format(entry.getValue()));
+      }
+      writer.close();
+      System.out.println("countries="+countryWeights.size()+" places="+placePriors.size());
+   }
+
+   private double[] fitWeights(long[] counts, double[] places, double[] levelDistribution, double countryDenominator) {
+      long countryTotal = 0;
+      for (long count : counts) {
+         countryTotal += count;
+      }
+      double countryProbability = (countryTotal + 1.0) / countryDenominator;
+      double[] weights = new double[LEVELS];
+      for (int i = 0; i < LEVELS; i++) {
+         double levelProbability = (counts[i] + alpha * levelDistribution[i]) / (countryTotal + alpha);
+         weights[i] = scale * Math.log(countryProbability * levelProbability / Math.max(1.0, places[i]));
+      }
+      return weights;
+   }
+
+   private static double min(double[] values) {
+      double min = values[0];
+      for (double value : values) {
+         min = Math.min(min, value);
+      }
+      return min;
+   }
+
+   private static String format(double[] weights, double offset) {
+      StringBuilder buf = new StringBuilder();
+      for (double weight : weights) {
+         if (buf.length() > 0) {
+            buf.append(",");
+         }
+         buf.append(format(weight + offset));
+      }
+      return buf.toString();
+   }
+
+   private static String format(double value) {
+      return Double.toString(Math.round(value * 10000) / 10000.0);
+   }
+
+   public static void main(String[] args) throws IOException {
+      TrainScoring self = new TrainScoring();
+      CmdLineParser parser = new CmdLineParser(self);
+      try {
+         parser.parseArgument(args);
+         self.doMain();
+      } catch (CmdLineException e) {
+         System.err.println(e.getMessage());
+         parser.printUsage(System.err);
+      }
+   }
+}